@@ -0,0 +1,362 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of each image through the stages of a batch, and samples of
+ * the <code>ForkJoinPool</code>'s state taken while it ran, so that a
+ * slow batch can be blamed on decoding, blurring, encoding, the memory
+ * budget, or a starved pool. The stages of an image are the wait for
+ * the memory budget to admit it, its read and decode, its wait in the
+ * pool's queues before its first pass starts, its blur, and its write.
+ * A streamed image is read, blurred, and written a strip at a time, so
+ * its stages are the totals over its strips, and it never queues.
+ *
+ * At the end of a run a table summarizes each stage over all images,
+ * and a report can be written with every image's timings, a histogram
+ * of each stage with buckets by powers of two nanoseconds, and every
+ * pool sample: as one JSON file, or as three CSV files.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class BatchStats {
+    private static final int BUCKETS = 48;     // Up to 2^48 ns, over three days.
+
+    /**
+     * The stages an image goes through, in order.
+     */
+    enum Stage {
+        WAIT,           // Waiting for the memory budget to admit it.
+        READ,           // Reading, decoding, and unpacking it.
+        QUEUE,          // Waiting in the pool's queues for its first pass.
+        BLUR,           // From the start of its first pass to the end of its last.
+        WRITE           // Encoding and writing its blurred copy.
+    }
+
+    private Map<String, long[]> images = new ConcurrentHashMap<>();    // Pixels, then nanoseconds per stage.
+    private List<long[]> samples = new ArrayList<>();
+    private ScheduledExecutorService sampler = null;
+    private int parallelism;
+    private long periodMillis;
+    private long startNanos;
+
+
+    /**
+     * Adds time to a stage of an image.
+     * @param image the name of the image
+     * @param stage the stage
+     * @param nanos the time spent in it
+     */
+    public void record(String image, Stage stage, long nanos) {
+        long[] timings = timings(image);
+        synchronized (timings) {
+            timings[1 + stage.ordinal()] += nanos;
+        }
+    }
+
+
+    /**
+     * Notes the size of an image.
+     * @param image the name of the image
+     * @param pixels the number of pixels in it
+     */
+    public void pixels(String image, long pixels) {
+        long[] timings = timings(image);
+        synchronized (timings) {
+            timings[0] = pixels;
+        }
+    }
+
+
+    private long[] timings(String image) {
+        return images.computeIfAbsent(image, name -> new long[1 + Stage.values().length]);
+    }
+
+
+    /**
+     * Starts sampling a pool's steal count, queued tasks and
+     * submissions, and active and running workers.
+     * @param pool the pool to sample
+     * @param periodMillis the time between samples
+     */
+    public void startSampling(ForkJoinPool pool, long periodMillis) {
+        this.parallelism = pool.getParallelism();
+        this.periodMillis = periodMillis;
+        this.startNanos = System.nanoTime();
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pool-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            long[] sample = {
+                (System.nanoTime() - startNanos) / 1000000, pool.getStealCount(), pool.getQueuedTaskCount(),
+                pool.getQueuedSubmissionCount(), pool.getActiveThreadCount(), pool.getRunningThreadCount()
+            };
+            synchronized (samples) {
+                samples.add(sample);
+            }
+        }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stops sampling the pool.
+     */
+    public void stopSampling() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Prints a table of each stage's total, mean, percentiles, and
+     * maximum over all images, then a summary of the pool samples.
+     */
+    public void printSummary() {
+        System.out.println(String.format("%-6s %7s %11s %9s %9s %9s %9s %9s",
+                                         "Stage", "Images", "Total ms", "Mean ms", "p50 ms", "p90 ms", "p99 ms", "Max ms"));
+        for (Stage stage : Stage.values()) {
+            long[] nanos = stageNanos(stage);
+            if (nanos.length == 0) {
+                continue;
+            }
+            long total = 0;
+            for (long n : nanos) {
+                total += n;
+            }
+            System.out.println(String.format("%-6s %7d %11.1f %9.2f %9.2f %9.2f %9.2f %9.2f",
+                                             name(stage), nanos.length, total / 1e6, total / 1e6 / nanos.length,
+                                             percentile(nanos, 50) / 1e6, percentile(nanos, 90) / 1e6,
+                                             percentile(nanos, 99) / 1e6, nanos[nanos.length - 1] / 1e6));
+        }
+        List<long[]> taken = samples();
+        if (taken.isEmpty()) {
+            return;
+        }
+        double active = 0;
+        double running = 0;
+        double queued = 0;
+        long maxQueued = 0;
+        int saturated = 0;
+        int starved = 0;
+        for (long[] sample : taken) {
+            active += sample[4];
+            running += sample[5];
+            queued += sample[2] + sample[3];
+            maxQueued = Math.max(maxQueued, sample[2] + sample[3]);
+            if (sample[5] >= parallelism) {
+                saturated++;
+            } else if (sample[2] + sample[3] == 0) {
+                starved++;
+            }
+        }
+        int n = taken.size();
+        System.out.println(String.format("Pool of %d sampled %d times: mean %.1f active and %.1f running workers, " +
+                                         "mean %.1f and peak %d tasks queued, %d steals; all workers running in " +
+                                         "%.0f%% of samples, idle workers with nothing queued in %.0f%%.",
+                                         parallelism, n, active / n, running / n, queued / n, maxQueued,
+                                         taken.get(n - 1)[1], 100.0 * saturated / n, 100.0 * starved / n));
+    }
+
+
+    /**
+     * Writes every image's timings, a histogram of each stage, and the
+     * pool samples. A file named <code>.json</code> gets all three as one
+     * JSON object; otherwise the timings go to the file as CSV, and the
+     * histograms and samples to CSV files beside it, named with
+     * <code>-histograms</code> and <code>-pool</code>.
+     * @param file the report file
+     * @throws IOException if a file cannot be written
+     */
+    public void writeReport(File file) throws IOException {
+        Map<String, long[]> sorted = new TreeMap<>(images);
+        List<long[]> taken = samples();
+        if (file.getName().endsWith(".json")) {
+            writeJson(file, sorted, taken);
+            return;
+        }
+        String base = file.getPath().replaceFirst("\\.csv$", "");
+        try (PrintWriter out = writer(file)) {
+            out.print("image,pixels");
+            for (Stage stage : Stage.values()) {
+                out.print("," + name(stage) + "_ns");
+            }
+            out.println();
+            for (Map.Entry<String, long[]> image : sorted.entrySet()) {
+                out.print(csv(image.getKey()));
+                for (long value : image.getValue()) {
+                    out.print("," + value);
+                }
+                out.println();
+            }
+        }
+        try (PrintWriter out = writer(new File(base + "-histograms.csv"))) {
+            out.println("stage,from_ns,to_ns,images");
+            for (Stage stage : Stage.values()) {
+                long[] counts = histogram(stageNanos(stage));
+                for (int b = 0; b < BUCKETS; b++) {
+                    if (counts[b] > 0) {
+                        out.println(name(stage) + "," + bucketFrom(b) + "," + (1L << (b + 1)) + "," + counts[b]);
+                    }
+                }
+            }
+        }
+        try (PrintWriter out = writer(new File(base + "-pool.csv"))) {
+            out.println("ms,steals,queued_tasks,queued_submissions,active,running");
+            for (long[] sample : taken) {
+                out.println(sample[0] + "," + sample[1] + "," + sample[2] + "," + sample[3] + "," +
+                            sample[4] + "," + sample[5]);
+            }
+        }
+    }
+
+
+    private void writeJson(File file, Map<String, long[]> sorted, List<long[]> taken) throws IOException {
+        try (PrintWriter out = writer(file)) {
+            out.println("{");
+            out.println("  \"images\": [");
+            int i = 0;
+            for (Map.Entry<String, long[]> image : sorted.entrySet()) {
+                long[] timings = image.getValue();
+                out.print("    {\"image\": " + json(image.getKey()) + ", \"pixels\": " + timings[0]);
+                for (Stage stage : Stage.values()) {
+                    out.print(", \"" + name(stage) + "_ns\": " + timings[1 + stage.ordinal()]);
+                }
+                out.println((++i < sorted.size()) ? "}," : "}");
+            }
+            out.println("  ],");
+            out.println("  \"histograms\": {");
+            Stage[] stages = Stage.values();
+            for (int s = 0; s < stages.length; s++) {
+                long[] counts = histogram(stageNanos(stages[s]));
+                List<String> buckets = new ArrayList<>();
+                for (int b = 0; b < BUCKETS; b++) {
+                    if (counts[b] > 0) {
+                        buckets.add("{\"from_ns\": " + bucketFrom(b) + ", \"to_ns\": " + (1L << (b + 1)) +
+                                    ", \"images\": " + counts[b] + "}");
+                    }
+                }
+                out.println("    \"" + name(stages[s]) + "\": [" + String.join(", ", buckets) +
+                            ((s + 1 < stages.length) ? "]," : "]"));
+            }
+            out.println("  },");
+            out.println("  \"pool\": {\"parallelism\": " + parallelism + ", \"period_ms\": " + periodMillis +
+                        ", \"samples\": [");
+            for (int t = 0; t < taken.size(); t++) {
+                long[] sample = taken.get(t);
+                out.println("    {\"ms\": " + sample[0] + ", \"steals\": " + sample[1] + ", \"queued_tasks\": " +
+                            sample[2] + ", \"queued_submissions\": " + sample[3] + ", \"active\": " + sample[4] +
+                            ", \"running\": " + sample[5] + ((t + 1 < taken.size()) ? "}," : "}"));
+            }
+            out.println("  ]}");
+            out.println("}");
+        }
+    }
+
+
+    /**
+     * Returns the times images spent in a stage, in ascending order,
+     * leaving out images that never reached it.
+     * @param stage the stage
+     * @return the times in nanoseconds
+     */
+    private long[] stageNanos(Stage stage) {
+        List<Long> nanos = new ArrayList<>();
+        for (long[] timings : images.values()) {
+            synchronized (timings) {
+                if (timings[1 + stage.ordinal()] > 0) {
+                    nanos.add(timings[1 + stage.ordinal()]);
+                }
+            }
+        }
+        long[] sorted = new long[nanos.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = nanos.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+
+    /**
+     * Counts times by powers of two: bucket <code>b</code> holds times
+     * from <code>2^b</code> up to <code>2^(b + 1)</code> nanoseconds.
+     * @param nanos the times
+     * @return the count in each bucket
+     */
+    private static long[] histogram(long[] nanos) {
+        long[] counts = new long[BUCKETS];
+        for (long n : nanos) {
+            counts[Math.min(63 - Long.numberOfLeadingZeros(Math.max(n, 1)), BUCKETS - 1)]++;
+        }
+        return counts;
+    }
+
+
+    private static long bucketFrom(int bucket) {
+        return (bucket == 0) ? 0 : 1L << bucket;
+    }
+
+
+    /**
+     * Returns a percentile of some times by the nearest rank.
+     * @param sorted the times, in ascending order
+     * @param percent the percentile
+     * @return the time at that percentile
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+
+    private List<long[]> samples() {
+        synchronized (samples) {
+            return new ArrayList<>(samples);
+        }
+    }
+
+
+    private static String name(Stage stage) {
+        return stage.name().toLowerCase();
+    }
+
+
+    private static PrintWriter writer(File file) throws IOException {
+        return new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+
+    private static String csv(String value) {
+        return (value.contains(",") || value.contains("\"")) ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+    }
+
+
+    private static String json(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
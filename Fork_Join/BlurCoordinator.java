@@ -0,0 +1,536 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Hands out the images of a batch to <code>BlurWorker</code> processes
+ * on other hosts, each of which blurs them on its own
+ * <code>ForkJoinPool</code>. Work is pulled, not pushed: each connection
+ * from a worker asks for a job, is sent one, and sends back the result
+ * before asking for the next, so a faster host simply asks more often.
+ * A job is a whole image, whose blurred copy, and any pyramid levels,
+ * come back as JPEG files, or a strip of rows of an image too large to
+ * leave to a single host. A strip comes back as its blurred rows, and
+ * the coordinator writes the image, and builds and writes any pyramid
+ * levels, once all of its strips are in. The
+ * jobs are handed out in the order given, and the strips of an image
+ * one after another.
+ *
+ * A worker must blur with the same settings as the coordinator, which
+ * checks them when the worker connects. A job whose worker disconnects
+ * before returning it goes back to the front of the queue for another,
+ * unless it has already lost <code>MAX_ATTEMPTS</code> workers, in case
+ * it is what brought them down. A job the worker could not blur is not
+ * handed out again. Either way its image is given up on, along with any
+ * strips of it still to be handed out.
+ *
+ * A worker is sent the file of an image in strips only once, however
+ * many of its strips it takes, on whichever of its connections: once it
+ * has returned a strip of the image it is known to keep a copy, and the
+ * later strips are sent without one. Each strip is still decoded from
+ * the top of the image down to its last row, as a JPEG must be, so an
+ * image in <code>n</code> strips costs about <code>n / 2</code> decodes
+ * of the whole image, spread over the workers.
+ *
+ * The messages are those of <code>DataOutputStream</code>. After
+ * sending the settings and its name, and being told whether it was
+ * accepted, a worker is sent a job kind byte, then the image's name and
+ * its length and bytes, or a length of -1 for a strip of an image it
+ * has kept, and for a strip its first row and the row after its last.
+ * It returns the number of files and each file's name and bytes for an
+ * image, none if it could not be blurred, or for a strip whether it was
+ * blurred and then three bytes per pixel.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class BlurCoordinator {
+    static final int DONE = 0;
+    static final int IMAGE = 1;
+    static final int STRIP = 2;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private ServerSocket server;
+    private File outputDir;
+    private BlurManifest manifest;
+    private BatchStats stats;
+    private ImageBufferPool buffers;
+    private ExecutorService writer;
+    private BlockingDeque<Job> queue = new LinkedBlockingDeque<>();
+    private CountDownLatch remaining;                              // Images not yet written.
+    private List<Thread> handlers = new ArrayList<>();
+    private Map<String, long[]> workers = new TreeMap<>();          // Images, strips, and busy nanoseconds.
+    private AtomicInteger failed = new AtomicInteger();             // Images given up on.
+
+
+    /**
+     * A unit of work for a worker: a whole image, or a strip of one.
+     */
+    private static class Job {
+        File srcFile;
+        Sharded image;                  // The image a strip belongs to, or null for a whole image.
+        int firstRow;
+        int lastRow;
+        int attempts = 0;               // Workers lost while holding it.
+
+        Job(File srcFile, Sharded image, int firstRow, int lastRow) {
+            this.srcFile = srcFile;
+            this.image = image;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+        }
+    }
+
+
+    /**
+     * An image blurred in strips by several workers, and the pixels
+     * gathered from them so far.
+     */
+    private static class Sharded {
+        int width;
+        int height;
+        int stripsLeft;
+        boolean failed = false;         // Whether a strip could not be blurred.
+        Set<String> holders = new HashSet<>();     // Workers known to keep a copy of the file.
+        BufferedImage pixels = null;    // Borrowed once the first strip returns.
+
+        Sharded(int width, int height, int strips) {
+            this.width = width;
+            this.height = height;
+            this.stripsLeft = strips;
+        }
+    }
+
+
+    /**
+     * Starts listening for workers, and queues the jobs for a batch.
+     * @param port the port workers connect to
+     * @param srcFiles the images to blur, in the order to hand them out
+     * @param shardPixels the pixels in each strip of an image more than
+     *                    twice as large, or 0 to hand out only whole images
+     * @param outputDir the directory the blurred copies are written to
+     * @param manifest the manifest to record written copies in, or null
+     * @param stats the timings to add each image's stages to
+     * @param buffers the pool the images of strips are gathered in
+     * @param writer the threads that encode and write gathered images
+     * @throws IOException if the port cannot be listened on
+     */
+    public BlurCoordinator(int port, File[] srcFiles, long shardPixels, File outputDir, BlurManifest manifest,
+                           BatchStats stats, ImageBufferPool buffers, ExecutorService writer) throws IOException {
+        this.server = new ServerSocket(port);
+        this.outputDir = outputDir;
+        this.manifest = manifest;
+        this.stats = stats;
+        this.buffers = buffers;
+        this.writer = writer;
+        this.remaining = new CountDownLatch(srcFiles.length);
+        for (File srcFile : srcFiles) {
+            queueJobs(srcFile, shardPixels);
+        }
+    }
+
+
+    /**
+     * Queues an image whole, or as strips of about the given number of
+     * pixels if it has more than twice that many. An image blurred from
+     * a radius map depends on where each row is in the whole image, so
+     * it is never split.
+     * @param srcFile the image
+     * @param shardPixels the pixels in each strip, or 0 to never split
+     */
+    private void queueJobs(File srcFile, long shardPixels) {
+        int[] size = ForkBlurBatch.headerSize(srcFile);
+        if (size == null || shardPixels == 0 || (long) size[0] * size[1] <= 2 * shardPixels
+                || ForkBlurBatch.sRadiusMapName != null) {
+            queue.add(new Job(srcFile, null, 0, 0));
+            return;
+        }
+        int rows = (int) Math.max(shardPixels / size[0], 1);
+        Sharded image = new Sharded(size[0], size[1], (size[1] + rows - 1) / rows);
+        for (int first = 0; first < size[1]; first += rows) {
+            queue.add(new Job(srcFile, image, first, Math.min(first + rows, size[1])));
+        }
+        System.out.println("Sharding " + srcFile.getName() + " into " + image.stripsLeft + " strips of " +
+                           rows + " rows");
+    }
+
+
+    /**
+     * Accepts workers until every image has been written, then tells
+     * each worker still connected that the batch is done.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run() throws InterruptedException {
+        System.out.println("Waiting for workers on port " + server.getLocalPort() + ".");
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> serve(socket), "coordinator-" + socket.getRemoteSocketAddress());
+                    synchronized (handlers) {
+                        handlers.add(handler);
+                    }
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // Closed once the batch is done.
+            }
+        }, "coordinator-accept");
+        acceptor.start();
+        remaining.await();
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.out.println("Error closing coordinator socket.");
+            e.printStackTrace();
+        }
+        acceptor.join();
+        synchronized (handlers) {
+            for (Thread handler : handlers) {
+                handler.join();
+            }
+        }
+    }
+
+
+    /**
+     * Prints how much of the batch each worker took.
+     */
+    public void printWorkerStats() {
+        synchronized (workers) {
+            for (Map.Entry<String, long[]> e : workers.entrySet()) {
+                long[] counts = e.getValue();
+                System.out.println("Worker " + e.getKey() + " blurred " + counts[0] + " images and " + counts[1] +
+                                   " strips, its connections busy for " + counts[2] / 1000000 + " milliseconds.");
+            }
+        }
+        if (failed.get() > 0) {
+            System.out.println(failed.get() + " images could not be blurred.");
+        }
+    }
+
+
+    /**
+     * Hands jobs to one connection from a worker until there are none
+     * left, or the worker goes away.
+     * @param socket the connection
+     */
+    private void serve(Socket socket) {
+        String name = socket.getRemoteSocketAddress().toString();
+        Job job = null;
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            String settings = in.readUTF();
+            name = in.readUTF();
+            boolean accepted = settings.equals(ForkBlurBatch.settings());
+            out.writeBoolean(accepted);
+            out.flush();
+            if (!accepted) {
+                System.out.println("Refused worker " + name + " blurring with " + settings);
+                return;
+            }
+            System.out.println("Worker " + name + " connected.");
+            for (job = take(); job != null; job = take()) {
+                long startTime = System.nanoTime();
+                out.writeByte((job.image == null) ? IMAGE : STRIP);
+                out.writeUTF(job.srcFile.getName());
+                if (job.image != null && holds(job.image, name)) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt((int) Files.size(job.srcFile.toPath()));
+                    Files.copy(job.srcFile.toPath(), out);
+                }
+                if (job.image == null) {
+                    out.flush();
+                    receiveImage(in, job, name, startTime);
+                } else {
+                    out.writeInt(job.firstRow);
+                    out.writeInt(job.lastRow);
+                    out.flush();
+                    receiveStrip(in, job, name, startTime);
+                }
+            }
+            out.writeByte(DONE);
+            out.flush();
+        } catch (IOException e) {
+            if (job != null && ++job.attempts < MAX_ATTEMPTS) {
+                System.out.println("Lost worker " + name + "; " + job.srcFile.getName() + " goes to another.");
+                queue.addFirst(job);
+            } else if (job != null) {
+                System.out.println("Lost worker " + name + "; " + job.srcFile.getName() + " has now lost " +
+                                   MAX_ATTEMPTS + " workers, and is given up on.");
+                fail(job);
+            } else {
+                System.out.println("Error talking to worker " + name + ".");
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Waits for a job, as long as any image is still to be written. A
+     * job may come back from a worker that disconnects, so an empty
+     * queue does not mean the batch is done.
+     * @return the next job, or null once every image has been written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Job take() throws InterruptedException {
+        while (remaining.getCount() > 0) {
+            Job job = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (job != null && job.image != null && job.image.failed) {
+                // No use blurring the rest of an image that cannot be written.
+                finishStrip(job.image, ForkBlurBatch.outputName(job.srcFile));
+            } else if (job != null) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Gives up on the image of a job. A whole image is counted as done
+     * at once, and an image in strips once its other strips are.
+     * @param job the job that could not be blurred
+     */
+    private void fail(Job job) {
+        if (job.image == null) {
+            failed.incrementAndGet();
+            remaining.countDown();
+        } else {
+            synchronized (job.image) {
+                job.image.failed = true;
+            }
+            finishStrip(job.image, ForkBlurBatch.outputName(job.srcFile));
+        }
+    }
+
+
+    /**
+     * Receives the files a worker wrote for a whole image, and writes
+     * them to the output directory.
+     * @param in the stream from the worker
+     * @param job the image
+     * @param name the worker
+     * @param startTime when the job was handed out
+     * @throws IOException if the worker cannot be read from
+     */
+    private void receiveImage(DataInputStream in, Job job, String name, long startTime) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>();
+        List<byte[]> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // Only the file's own name, so that the worker cannot write outside the output directory.
+            names.add(new File(in.readUTF()).getName());
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            files.add(data);
+        }
+        // Counted as the blur, since that is what the time went on.
+        long writeTime = System.nanoTime();
+        String outputName = ForkBlurBatch.outputName(job.srcFile);
+        stats.pixels(outputName, ForkBlurBatch.headerPixels(job.srcFile));
+        stats.record(outputName, BatchStats.Stage.BLUR, writeTime - startTime);
+        try {
+            for (int i = 0; i < count; i++) {
+                Files.write(new File(outputDir, names.get(i)).toPath(), files.get(i));
+            }
+            if (count == 0) {
+                System.out.println("Worker " + name + " could not blur " + job.srcFile.getName());
+                failed.incrementAndGet();
+            } else if (manifest != null) {
+                manifest.written(outputName);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing output image.");
+            e.printStackTrace();
+        }
+        stats.record(outputName, BatchStats.Stage.WRITE, System.nanoTime() - writeTime);
+        System.out.println("Finish write of: " + outputName + " from " + name);
+        count(name, 0, startTime);
+        remaining.countDown();
+    }
+
+
+    /**
+     * Receives the blurred rows of a strip, and once every strip of its
+     * image is in, hands the image to the writer threads.
+     * @param in the stream from the worker
+     * @param job the strip
+     * @param name the worker
+     * @param startTime when the job was handed out
+     * @throws IOException if the worker cannot be read from
+     */
+    private void receiveStrip(DataInputStream in, Job job, String name, long startTime) throws IOException {
+        Sharded image = job.image;
+        if (!in.readBoolean()) {
+            System.out.println("Worker " + name + " could not blur a strip of " + job.srcFile.getName());
+            fail(job);
+            return;
+        }
+        byte[] rgb = new byte[3 * image.width * (job.lastRow - job.firstRow)];
+        in.readFully(rgb);
+        String outputName = ForkBlurBatch.outputName(job.srcFile);
+        stats.record(outputName, BatchStats.Stage.BLUR, System.nanoTime() - startTime);
+        int[] pixels;
+        synchronized (image) {
+            if (image.pixels == null) {
+                image.pixels = buffers.borrow(image.width, image.height, BufferedImage.TYPE_INT_RGB);
+                stats.pixels(outputName, (long) image.width * image.height);
+            }
+            pixels = RasterAccess.packedPixels(image.pixels);
+        }
+        synchronized (image) {
+            image.holders.add(workerOf(name));
+        }
+        int offset = job.firstRow * image.width;
+        for (int i = 0; i < rgb.length / 3; i++) {
+            pixels[offset + i] = ((rgb[3 * i] & 0xff) << 16) | ((rgb[3 * i + 1] & 0xff) << 8) | (rgb[3 * i + 2] & 0xff);
+        }
+        count(name, 1, startTime);
+        finishStrip(image, outputName);
+    }
+
+
+    /**
+     * Counts a strip of an image as done, and once every strip is, hands
+     * the image to the writer threads, or gives it up if a strip could
+     * not be blurred.
+     * @param image the image
+     * @param outputName the name of the file for the blurred image
+     */
+    private void finishStrip(Sharded image, String outputName) {
+        boolean last;
+        synchronized (image) {
+            last = --image.stripsLeft == 0;
+        }
+        if (!last) {
+            return;
+        }
+        if (!image.failed) {
+            writer.execute(() -> writeSharded(image, outputName));
+            return;
+        }
+        System.out.println("Could not blur " + outputName + " from its strips.");
+        if (image.pixels != null) {
+            buffers.release(image.pixels);
+            image.pixels = null;
+        }
+        failed.incrementAndGet();
+        remaining.countDown();
+    }
+
+
+    /**
+     * Writes an image gathered from strips, builds and writes the levels
+     * of its pyramid if one was asked for, and returns its pixels to the
+     * buffer pool. The strips were blurred on different hosts, so the
+     * levels are built here, from the whole image. The manifest records
+     * the image only once all of them have been written.
+     * @param image the image, with every strip in
+     * @param outputName the name of the file for the blurred image
+     */
+    private void writeSharded(Sharded image, String outputName) {
+        System.out.println("Beginning write of: " + outputName);
+        long startTime = System.nanoTime();
+        MipPyramid pyramid = null;
+        try {
+            boolean written = ImageIO.write(image.pixels, "jpg", new File(outputDir, outputName));
+            if (written && ForkBlurBatch.sPyramidLevels > 0) {
+                BufferedImage[] levels = new BufferedImage[ForkBlurBatch.sPyramidLevels];
+                for (int level = 1; level <= levels.length; level++) {
+                    levels[level - 1] = buffers.borrow(MipPyramid.levelSize(image.width, level),
+                                                       MipPyramid.levelSize(image.height, level),
+                                                       BufferedImage.TYPE_INT_RGB);
+                }
+                pyramid = new MipPyramid(levels, image.width, image.height);
+                pyramid.downsample(RasterAccess.packedPixels(image.pixels), 0, image.height, 0, image.width);
+                for (int level = 1; written && level <= levels.length; level++) {
+                    written = ImageIO.write(pyramid.getLevel(level), "jpg",
+                                            new File(outputDir, MipPyramid.levelName(outputName, level)));
+                }
+            }
+            if (!written) {
+                System.out.println("No jpg writer for the blurred image of: " + outputName);
+            } else if (manifest != null) {
+                manifest.written(outputName);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing output image.");
+            e.printStackTrace();
+        }
+        stats.record(outputName, BatchStats.Stage.WRITE, System.nanoTime() - startTime);
+        if (pyramid != null) {
+            for (BufferedImage level : pyramid.getLevels()) {
+                buffers.release(level);
+            }
+        }
+        buffers.release(image.pixels);
+        image.pixels = null;
+        System.out.println("Finish write of: " + outputName);
+        remaining.countDown();
+    }
+
+
+    /**
+     * Returns whether the worker behind a connection is known to keep a
+     * copy of the file of an image in strips.
+     * @param image the image
+     * @param name the connection, as the worker and a slot number
+     * @return whether the worker has returned a strip of the image
+     */
+    private static boolean holds(Sharded image, String name) {
+        synchronized (image) {
+            return image.holders.contains(workerOf(name));
+        }
+    }
+
+
+    /**
+     * Returns the worker a connection is from.
+     * @param name the connection, as the worker and a slot number
+     * @return the worker, shared by all its connections
+     */
+    private static String workerOf(String name) {
+        return (name.lastIndexOf('/') < 0) ? name : name.substring(0, name.lastIndexOf('/'));
+    }
+
+
+    /**
+     * Adds a finished job to a worker's counts, which add up the jobs of
+     * all its connections.
+     * @param name the connection, as the worker and a slot number
+     * @param kind 0 for a whole image, 1 for a strip
+     * @param startTime when the job was handed out
+     */
+    private void count(String name, int kind, long startTime) {
+        synchronized (workers) {
+            long[] counts = workers.computeIfAbsent(workerOf(name), n -> new long[3]);
+            counts[kind]++;
+            counts[2] += System.nanoTime() - startTime;
+        }
+    }
+}
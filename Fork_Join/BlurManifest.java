@@ -0,0 +1,214 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A record of the images blurred on earlier runs, so that a run skips
+ * any image whose blurred copy is already up to date. For each blurred
+ * copy the manifest keeps the name of the image it was blurred from,
+ * that image's size, modification time, and SHA-256 hash, and the
+ * settings it was blurred with. An image is skipped if its blurred copy
+ * still exists, the settings are the same, and its contents hash the
+ * same. The hash is only computed when the size or modification time
+ * has changed, so an unchanged directory is checked without reading
+ * its images.
+ *
+ * The manifest is a text file with one tab-separated line per blurred
+ * copy. Entries are only recorded once the copy has been written, and
+ * the file is rewritten at the end of the run, or as entries are
+ * recorded when watching a directory.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class BlurManifest {
+    private File file;
+    private String settings;
+    private Map<String, Entry> entries = new TreeMap<>();      // Recorded blurs, by output name.
+    private Map<String, Entry> pending = new HashMap<>();      // Blurs this run has yet to write.
+    private int skipped = 0;
+    private boolean changed = false;                           // Entries differ from the file's.
+
+
+    /**
+     * One blurred copy and what it was blurred from.
+     */
+    private static class Entry {
+        String input;
+        long bytes;
+        long modified;
+        String hash;
+        String settings;
+
+        Entry(String input, long bytes, long modified, String hash, String settings) {
+            this.input = input;
+            this.bytes = bytes;
+            this.modified = modified;
+            this.hash = hash;
+            this.settings = settings;
+        }
+    }
+
+
+    /**
+     * Reads a manifest, or starts an empty one if the file does not
+     * exist yet.
+     * @param file the manifest file
+     * @param settings a description of everything the blur's output depends on
+     * @return the manifest
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static BlurManifest load(File file, String settings) throws IOException {
+        BlurManifest manifest = new BlurManifest();
+        manifest.file = file;
+        manifest.settings = settings;
+        if (!file.exists()) {
+            return manifest;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split("\t");
+                if (line.startsWith("#") || fields.length != 6) {
+                    continue;
+                }
+                manifest.entries.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2]),
+                                                          Long.parseLong(fields[3]), fields[4], fields[5]));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed manifest: " + file, e);
+        }
+        return manifest;
+    }
+
+
+    /**
+     * Picks out the images that still need blurring. The rest are
+     * counted as skipped.
+     * @param srcFiles the image files to blur
+     * @param outputFiles each file's blurred copy, recorded by name
+     * @return the files whose blurred copies are missing or out of date
+     */
+    public synchronized File[] select(File[] srcFiles, File[] outputFiles) {
+        List<File> selected = new ArrayList<>();
+        for (int i = 0; i < srcFiles.length; i++) {
+            File srcFile = srcFiles[i];
+            String outputName = outputFiles[i].getName();
+            Entry recorded = entries.get(outputName);
+            boolean current = recorded != null && recorded.input.equals(srcFile.getName())
+                              && recorded.settings.equals(settings) && outputFiles[i].exists();
+            long bytes = srcFile.length();
+            long modified = srcFile.lastModified();
+            if (current && recorded.bytes == bytes && recorded.modified == modified) {
+                skipped++;
+                continue;
+            }
+            String hash = null;
+            try {
+                hash = hash(srcFile);
+            } catch (IOException e) {
+                // Blurred anyway, so that reading it reports the error.
+                selected.add(srcFile);
+                continue;
+            }
+            if (current && recorded.hash.equals(hash)) {
+                // Touched but unchanged.
+                recorded.bytes = bytes;
+                recorded.modified = modified;
+                changed = true;
+                skipped++;
+                continue;
+            }
+            pending.put(outputName, new Entry(srcFile.getName(), bytes, modified, hash, settings));
+            selected.add(srcFile);
+        }
+        return selected.toArray(new File[0]);
+    }
+
+
+    /**
+     * Records that a blurred copy selected by this run has been written.
+     * @param outputName the name of the blurred copy
+     */
+    public synchronized void written(String outputName) {
+        Entry entry = pending.remove(outputName);
+        if (entry != null) {
+            entries.put(outputName, entry);
+            changed = true;
+        }
+    }
+
+
+    /**
+     * Rewrites the manifest file with every blurred copy recorded so far.
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))) {
+            out.println("# output\tinput\tbytes\tmodified\tsha-256\tsettings");
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.println(e.getKey() + "\t" + entry.input + "\t" + entry.bytes + "\t" + entry.modified +
+                            "\t" + entry.hash + "\t" + entry.settings);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        changed = false;
+    }
+
+
+    /**
+     * Rewrites the manifest file if anything has been recorded since it
+     * was last written, for a run that never ends.
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void saveIfChanged() throws IOException {
+        if (changed) {
+            save();
+        }
+    }
+
+
+    /**
+     * Prints how many images were skipped as already blurred.
+     */
+    public synchronized void printStats() {
+        System.out.println("Manifest " + file + " skipped " + skipped + " unchanged images.");
+    }
+
+
+    /**
+     * Hashes the contents of a file.
+     * @param srcFile the file
+     * @return the SHA-256 hash in hexadecimal
+     * @throws IOException if the file cannot be read
+     */
+    private static String hash(File srcFile) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available.", e);
+        }
+        try (InputStream in = new DigestInputStream(Files.newInputStream(srcFile.toPath()), digest)) {
+            byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) >= 0) {
+                // Reading updates the digest.
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blurs a batch of images as a three-stage pipeline so that reading,
+ * blurring, and writing different images overlap. A pool of decode
+ * threads reads images into a bounded queue. A single blur thread takes
+ * each image from that queue, blurs it across the whole
+ * <code>ForkJoinPool</code>, and puts it into a second bounded queue.
+ * A pool of encode threads takes images from the second queue and
+ * writes them. A full queue blocks the stage feeding it, so a slow
+ * stage holds back the others instead of letting decoded images pile
+ * up in memory.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class BlurPipeline {
+    // Tells the blur and encode stages that no more images are coming.
+    private static final ForkBlurBatch END = new ForkBlurBatch(new int[0], 0, 0, new int[0]);
+
+    private ForkJoinPool blurPool;
+    private int decoderCount;
+    private int encoderCount;
+    private BlockingQueue<ForkBlurBatch> toBlur;
+    private BlockingQueue<ForkBlurBatch> toEncode;
+    private AtomicLong decodeNanos = new AtomicLong();
+    private AtomicLong blurNanos = new AtomicLong();
+    private AtomicLong encodeNanos = new AtomicLong();
+    private AtomicLong imagesWritten = new AtomicLong();
+    private long wallNanos;
+
+
+    /**
+     * Creates a pipeline whose queues each hold two images per thread
+     * of the stage that empties them.
+     * @param blurPool the pool that blurs each image
+     * @param decoderCount the number of threads reading images
+     * @param encoderCount the number of threads writing images
+     */
+    public BlurPipeline(ForkJoinPool blurPool, int decoderCount, int encoderCount) {
+        this.blurPool = blurPool;
+        this.decoderCount = decoderCount;
+        this.encoderCount = encoderCount;
+        this.toBlur = new ArrayBlockingQueue<>(2);
+        this.toEncode = new ArrayBlockingQueue<>(2 * encoderCount);
+    }
+
+
+    /**
+     * Pushes every image file through the three stages and returns
+     * once the last blurred image has been written.
+     * @param srcFiles an array of image file objects to blur
+     */
+    public void run(File[] srcFiles) throws InterruptedException {
+        long startTime = System.nanoTime();
+        ExecutorService decoders = Executors.newFixedThreadPool(decoderCount);
+        ExecutorService encoders = Executors.newFixedThreadPool(encoderCount);
+        for (int i = 0; i < encoderCount; i++) {
+            encoders.execute(this::encodeStage);
+        }
+        Thread blurrer = new Thread(this::blurStage, "blur-stage");
+        blurrer.start();
+        for (File srcFile : srcFiles) {
+            decoders.execute(() -> decode(srcFile));
+        }
+
+        // Once every image has been decoded, drain the later stages.
+        decoders.shutdown();
+        decoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        toBlur.put(END);
+        blurrer.join();
+        encoders.shutdown();
+        encoders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        wallNanos = System.nanoTime() - startTime;
+    }
+
+
+    /**
+     * Decode stage: reads one image and queues it for blurring,
+     * waiting if the blur stage is behind.
+     * @param srcFile the image file to read
+     */
+    private void decode(File srcFile) {
+        long startTime = System.nanoTime();
+        ForkBlurBatch fb = ForkBlurBatch.readImage(srcFile, null);
+        decodeNanos.addAndGet(System.nanoTime() - startTime);
+        if (fb == null) {
+            return;
+        }
+        fb.deferWrite();
+        try {
+            toBlur.put(fb);
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted queueing: " + fb.getOutputFileName());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Blur stage: blurs each decoded image on the
+     * <code>ForkJoinPool</code> and queues it for writing, until the
+     * decode stage is finished. An image whose blur fails is dropped,
+     * and the stage goes on to the next. However the stage ends, it
+     * tells the encoders, so that they and <code>run</code> finish.
+     */
+    private void blurStage() {
+        try {
+            for (ForkBlurBatch fb = toBlur.take(); fb != END; fb = toBlur.take()) {
+                System.out.println("Invoking FJPool for: " + fb.getOutputFileName());
+                long startTime = System.nanoTime();
+                try {
+                    blurPool.invoke(fb);
+                } catch (RuntimeException | Error e) {
+                    // The image logged its own failure; only its footprint is left to free.
+                    System.out.println("Not writing: " + fb.getOutputFileName());
+                    fb.releaseBuffers();
+                    continue;
+                } finally {
+                    blurNanos.addAndGet(System.nanoTime() - startTime);
+                }
+                toEncode.put(fb);
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Blur stage interrupted.");
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                for (int i = 0; i < encoderCount; i++) {
+                    toEncode.put(END);
+                }
+            } catch (InterruptedException e) {
+                System.out.println("Blur stage interrupted.");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Encode stage: writes blurred images until the blur stage is
+     * finished. An image that cannot be written is logged and skipped.
+     */
+    private void encodeStage() {
+        try {
+            for (ForkBlurBatch fb = toEncode.take(); fb != END; fb = toEncode.take()) {
+                long startTime = System.nanoTime();
+                try {
+                    fb.writeImage();
+                    imagesWritten.incrementAndGet();
+                } catch (RuntimeException | Error e) {
+                    System.out.println("Error writing output image.");
+                    e.printStackTrace();
+                } finally {
+                    // Freed whether or not it was written, or later images wait on the budget forever.
+                    fb.releaseBuffers();
+                    encodeNanos.addAndGet(System.nanoTime() - startTime);
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("Encode stage interrupted.");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Prints the time each stage spent working, summed over its threads,
+     * next to the elapsed time of the whole run.
+     */
+    public void printStageTimes() {
+        System.out.println("Pipeline wrote " + imagesWritten.get() + " images in " +
+                           (wallNanos / 1000000) + " milliseconds.");
+        System.out.println("Decode stage (" + decoderCount + " threads) worked " +
+                           (decodeNanos.get() / 1000000) + " milliseconds.");
+        System.out.println("Blur stage (" + blurPool.getParallelism() + " FJ workers) worked " +
+                           (blurNanos.get() / 1000000) + " milliseconds.");
+        System.out.println("Encode stage (" + encoderCount + " threads) worked " +
+                           (encodeNanos.get() / 1000000) + " milliseconds.");
+    }
+}
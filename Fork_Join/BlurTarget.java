@@ -0,0 +1,64 @@
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+
+/**
+ * The blur operations the JMH benchmarks in <code>jmh/</code> time, on
+ * synthetic in-memory images. JMH will not benchmark a class in the
+ * default package, and a class in a named package cannot refer to one in
+ * the default package, so <code>jmh.BlurBenchmark</code> loads this class
+ * by name and drives it only through <code>BiFunction</code> and
+ * <code>Runnable</code>. Given an operation and the benchmark's
+ * parameters, this sets the blur up and returns the work to time.
+ *
+ * The parameters are <code>size</code> (as <code>WIDTHxHEIGHT</code>),
+ * <code>blurWidth</code>, <code>kernel</code>, <code>mode</code>,
+ * <code>threshold</code> (0 to adapt) and <code>parallelism</code> (0
+ * for one worker per processor). The operations are
+ * <code>computeDirectly</code>, which blurs the whole image as one leaf
+ * on the calling thread, and <code>invoke</code>, which blurs it as a
+ * complete image on a <code>ForkJoinPool</code> without writing it.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class BlurTarget implements BiFunction<String, Map<String, String>, Runnable> {
+
+    @Override
+    public Runnable apply(String operation, Map<String, String> params) {
+        String[] size = params.get("size").split("x");
+        int w = Integer.parseInt(size[0]);
+        int h = Integer.parseInt(size[1]);
+        ForkBlurBatch.sBlurWidth = Integer.parseInt(params.get("blurWidth"));
+        ForkBlurBatch.sKernel = ForkBlurBatch.Kernel.valueOf(params.get("kernel"));
+        if (ForkBlurBatch.sKernel == ForkBlurBatch.Kernel.VECTOR) {
+            ForkBlurBatch.loadVectorKernel();
+        }
+
+        int[] src = TileBenchmark.syntheticImage(w, h);
+        int[] dst = new int[w * h];
+
+        switch (operation) {
+            case "computeDirectly":
+                return () -> new ForkBlurBatch(src, 0, src.length, dst).computeDirectly();
+            case "invoke":
+                int parallelism = Integer.parseInt(params.get("parallelism"));
+                int threshold = Integer.parseInt(params.get("threshold"));
+                ForkJoinPool pool = (parallelism > 0) ? new ForkJoinPool(parallelism) : new ForkJoinPool();
+                ForkBlurBatch.sMode = ForkBlurBatch.Mode.valueOf(params.get("mode"));
+                ForkBlurBatch.sThreshold = threshold;
+                ForkBlurBatch.setSplitPolicy((threshold > 0)
+                                             ? new SplitPolicy(pool.getParallelism(), 1.0, threshold)
+                                             : SplitPolicy.calibrate(pool.getParallelism(), ForkBlurBatch.sBlurWidth));
+                // Passes may leave their output in src, so later runs blur an
+                // already blurred image; no kernel's cost depends on the
+                // pixels' values, so the image is not restored in between.
+                return () -> {
+                    ForkBlurBatch fb = new ForkBlurBatch(src, 0, w * h, dst, w, h, "benchmark");
+                    fb.deferWrite();
+                    pool.invoke(fb);
+                };
+            default:
+                throw new IllegalArgumentException("Unknown operation: " + operation);
+        }
+    }
+}
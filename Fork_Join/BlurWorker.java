@@ -0,0 +1,331 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Blurs images handed out by a <code>BlurCoordinator</code> on another
+ * host. The worker opens several connections to the coordinator, its
+ * slots, and each asks for a job, blurs it on this host's
+ * <code>ForkJoinPool</code>, and sends back the result before asking
+ * for the next, so that one slot's transfers overlap the others' blurs.
+ * A whole image is blurred as in a batch, from a copy of its file in a
+ * scratch directory, and its blurred copy and any pyramid levels are
+ * sent back as they were written there. A strip is decoded with the
+ * halo rows its blur reaches into, as when streaming, and only its own
+ * rows are sent back. The file of an image in strips is kept, for
+ * every slot, until the batch is done, since the coordinator sends it
+ * only once. A job that cannot be blurred is reported as such, and the
+ * slot goes on to the next.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class BlurWorker {
+    private static final int MAX_RETRIES = 100;
+
+    private String host;
+    private int port;
+    private int slots;
+    private ForkJoinPool pool;
+    private BatchStats stats;
+    private File scratchDir;
+    private File keptDir;           // The files of images in strips, shared by the slots.
+
+
+    /**
+     * Creates a worker for a coordinator. The blurred copies of whole
+     * images are written to the scratch directory, which should be the
+     * output directory <code>ForkBlurBatch</code> writes to.
+     * @param host the coordinator's host
+     * @param port the coordinator's port
+     * @param slots the number of jobs to work on at once
+     * @param pool the pool that blurs each image
+     * @param stats the timings to add each image's stages to
+     * @param scratchDir a directory for the images and their blurred copies
+     */
+    public BlurWorker(String host, int port, int slots, ForkJoinPool pool, BatchStats stats, File scratchDir) {
+        this.host = host;
+        this.port = port;
+        this.slots = slots;
+        this.pool = pool;
+        this.stats = stats;
+        this.scratchDir = scratchDir;
+        this.keptDir = new File(scratchDir, "kept");
+    }
+
+
+    /**
+     * Works through jobs on every slot until the coordinator has none
+     * left, then removes the scratch directory.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void run() throws InterruptedException {
+        keptDir.mkdirs();
+        Thread[] threads = new Thread[slots];
+        for (int i = 0; i < slots; i++) {
+            int slot = i;
+            threads[i] = new Thread(() -> serve(slot), "worker-slot-" + slot);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        File[] kept = keptDir.listFiles();
+        if (kept != null) {
+            for (File file : kept) {
+                file.delete();
+            }
+        }
+        keptDir.delete();
+        scratchDir.delete();
+    }
+
+
+    /**
+     * Takes jobs from the coordinator on one connection until it says
+     * the batch is done.
+     * @param slot the number of the slot
+     */
+    private void serve(int slot) {
+        File slotDir = new File(scratchDir, "slot-" + slot);
+        slotDir.mkdirs();
+        try (Socket socket = connect();
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            out.writeUTF(ForkBlurBatch.settings());
+            out.writeUTF(InetAddress.getLocalHost().getHostName() + "-" + ProcessHandle.current().pid() + "/" + slot);
+            out.flush();
+            boolean accepted = in.readBoolean();
+            if (!accepted) {
+                System.out.println("The coordinator blurs with other settings: " + ForkBlurBatch.settings());
+            }
+            for (int kind = accepted ? in.readByte() : BlurCoordinator.DONE; kind != BlurCoordinator.DONE;
+                     kind = in.readByte()) {
+                // Only the file's own name, so that the coordinator cannot write outside the slot.
+                String fileName = new File(in.readUTF()).getName();
+                int length = in.readInt();
+                byte[] data = (length < 0) ? null : new byte[length];
+                if (data != null) {
+                    in.readFully(data);
+                }
+                int firstRow = (kind == BlurCoordinator.STRIP) ? in.readInt() : 0;
+                int lastRow = (kind == BlurCoordinator.STRIP) ? in.readInt() : 0;
+                File srcFile = new File((kind == BlurCoordinator.IMAGE) ? slotDir : keptDir, fileName);
+                // A job that fails here is reported, so that it is not handed to every slot in turn.
+                List<File> written = new ArrayList<>();
+                byte[] rows = null;
+                try {
+                    if (kind == BlurCoordinator.IMAGE) {
+                        Files.write(srcFile.toPath(), data);
+                        written = blurImage(srcFile);
+                    } else {
+                        keep(srcFile, data, slotDir);
+                        rows = blurStrip(srcFile, firstRow, lastRow);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Error blurring: " + srcFile.getName());
+                    e.printStackTrace();
+                }
+                if (kind == BlurCoordinator.IMAGE) {
+                    sendImage(out, written);
+                } else {
+                    out.writeBoolean(rows != null);
+                    if (rows != null) {
+                        out.write(rows);
+                    }
+                }
+                out.flush();
+                if (kind == BlurCoordinator.IMAGE) {
+                    srcFile.delete();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error talking to the coordinator.");
+            e.printStackTrace();
+        }
+        slotDir.delete();
+    }
+
+
+    /**
+     * Keeps the file of an image in strips for every slot. Another slot
+     * may be reading the kept copy, so a new one is written aside and
+     * moved over it in one step.
+     * @param keptFile where the copy is kept
+     * @param data the file's bytes, or null if the coordinator has
+     *             already sent them
+     * @param slotDir the slot's own directory, to write the copy in first
+     * @throws IOException if the copy cannot be written, or there is none
+     */
+    private static void keep(File keptFile, byte[] data, File slotDir) throws IOException {
+        if (data == null) {
+            if (!keptFile.isFile()) {
+                throw new IOException("No copy kept of: " + keptFile.getName());
+            }
+            return;
+        }
+        File partFile = new File(slotDir, keptFile.getName() + ".part");
+        Files.write(partFile.toPath(), data);
+        Files.move(partFile.toPath(), keptFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     * Connects to the coordinator, retrying for a while in case it has
+     * not started listening yet.
+     * @return the connection
+     * @throws IOException if the coordinator cannot be reached
+     */
+    private Socket connect() throws IOException {
+        for (int retryCount = 1; ; retryCount++) {
+            try {
+                return new Socket(host, port);
+            } catch (IOException e) {
+                if (retryCount >= MAX_RETRIES) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Blurs a whole image and writes its blurred copy as in a batch. The
+     * files it is to write are removed first, so that whatever an earlier
+     * job left in the scratch directory is never sent as this one's, and
+     * it only counts as written if every one of them is there afterwards.
+     * @param srcFile the image
+     * @return the files written, which are none if any could not be
+     */
+    private List<File> blurImage(File srcFile) {
+        File outputFile = ForkBlurBatch.outputFile(srcFile);
+        List<File> written = new ArrayList<>();
+        written.add(outputFile);
+        for (int level = 1; level <= ForkBlurBatch.sPyramidLevels; level++) {
+            written.add(new File(outputFile.getParentFile(), MipPyramid.levelName(outputFile.getName(), level)));
+        }
+        deleteAll(written);
+        try {
+            ForkBlurBatch fb = ForkBlurBatch.readImage(srcFile, null);
+            if (fb != null) {
+                // Returns once the image has been written, or throws if its blur failed.
+                pool.invoke(fb);
+            }
+        } catch (RuntimeException e) {
+            deleteAll(written);
+            throw e;
+        }
+        for (File file : written) {
+            if (!file.isFile()) {
+                deleteAll(written);
+                return new ArrayList<>();
+            }
+        }
+        return written;
+    }
+
+
+    /**
+     * Deletes files, any of which may not exist.
+     * @param files the files
+     */
+    private static void deleteAll(List<File> files) {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Sends the files written for an image to the coordinator, and
+     * deletes them.
+     * @param out the stream to the coordinator
+     * @param files the files
+     * @throws IOException if a file cannot be read or sent
+     */
+    private void sendImage(DataOutputStream out, List<File> files) throws IOException {
+        out.writeInt(files.size());
+        for (File file : files) {
+            byte[] data = Files.readAllBytes(file.toPath());
+            out.writeUTF(file.getName());
+            out.writeInt(data.length);
+            out.write(data);
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Blurs a strip of an image. The strip is decoded along with the
+     * halo rows around it, which absorb its edges, so its rows come out
+     * as they would from blurring the whole image.
+     * @param srcFile the image
+     * @param firstRow the first row of the strip
+     * @param lastRow the row after the last row of the strip
+     * @return the blurred rows, three bytes per pixel
+     * @throws IOException if the image cannot be read
+     */
+    private byte[] blurStrip(File srcFile, int firstRow, int lastRow) throws IOException {
+        String outputName = ForkBlurBatch.outputName(srcFile);
+        try (ImageInputStream in = ImageIO.createImageInputStream(srcFile)) {
+            Iterator<ImageReader> readers = (in == null) ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("No reader for source image: " + srcFile.getName());
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                int halo = ForkBlurBatch.haloRows(w);
+                int readFirst = Math.max(firstRow - halo, 0);
+                int readEnd = Math.min(lastRow + halo, h);
+                long startTime = System.nanoTime();
+                BufferedImage decoded = ForkBlurBatch.decode(reader, new Rectangle(0, readFirst, w, readEnd - readFirst));
+                ForkBlurBatch strip = ForkBlurBatch.createTask(decoded, outputName, null);
+                stats.pixels(outputName, (long) w * (lastRow - firstRow));
+                stats.record(outputName, BatchStats.Stage.READ, System.nanoTime() - startTime);
+                strip.deferWrite();
+                try {
+                    pool.invoke(strip);
+                    int[] pixels = strip.getResult();
+                    byte[] rgb = new byte[3 * w * (lastRow - firstRow)];
+                    int offset = (firstRow - readFirst) * w;
+                    for (int i = 0; i < rgb.length / 3; i++) {
+                        int pixel = pixels[offset + i];
+                        rgb[3 * i] = (byte) (pixel >> 16);
+                        rgb[3 * i + 1] = (byte) (pixel >> 8);
+                        rgb[3 * i + 2] = (byte) pixel;
+                    }
+                    return rgb;
+                } finally {
+                    strip.releaseBuffers();
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.util.Arrays;
+
+/**
+ * A small convolution filter, such as sharpen, edge detect, or emboss,
+ * applied to packed RGB pixels. Each channel of an output pixel is the
+ * weighted sum of that channel over the neighbourhood the weights cover,
+ * plus a bias, rounded and clamped to 0..255. Neighbours beyond the edges
+ * of the image are clamped to the edge, as in the blur kernels.
+ *
+ * A filter whose weights are the product of one column of weights and
+ * one row of weights can be applied as a horizontal pass and then a
+ * vertical pass, which costs the sum of their sizes per pixel instead of
+ * the product. <code>separate</code> finds those factors.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class ConvolutionKernel {
+    private static final float EPSILON = 1e-5f;
+
+    private String name;
+    private int width;
+    private int height;
+    private float[] weights;        // Row-major, already divided by the divisor.
+    private float bias;
+
+
+    /**
+     * Creates a filter.
+     * @param name the name the filter is printed with
+     * @param width the number of columns of weights, which should be odd
+     * @param height the number of rows of weights, which should be odd
+     * @param weights the weights in row-major order
+     * @param bias the value added to each channel after weighting
+     */
+    public ConvolutionKernel(String name, int width, int height, float[] weights, float bias) {
+        if (width % 2 == 0 || height % 2 == 0 || weights.length != width * height) {
+            throw new IllegalArgumentException("Filter weights must form an odd-sized rectangle.");
+        }
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.weights = weights.clone();
+        this.bias = bias;
+    }
+
+
+    /**
+     * Returns a built-in filter by name, or a square filter given as its
+     * weights in row-major order separated by commas, optionally followed
+     * by a slash and a divisor, such as <code>1,2,1,2,4,2,1,2,1/16</code>.
+     * @param spec the name or weights of the filter
+     * @return the filter
+     * @throws IllegalArgumentException if the filter is unknown or malformed
+     */
+    public static ConvolutionKernel named(String spec) {
+        switch (spec) {
+            case "sharpen":
+                return square(spec, new float[] {0, -1, 0, -1, 5, -1, 0, -1, 0}, 1);
+            case "edge":
+                return square(spec, new float[] {-1, -1, -1, -1, 8, -1, -1, -1, -1}, 1);
+            case "emboss":
+                return square(spec, new float[] {-2, -1, 0, -1, 1, 1, 0, 1, 2}, 1);
+            case "gaussian":
+                return square(spec, new float[] {1, 4, 6, 4, 1,
+                                                 4, 16, 24, 16, 4,
+                                                 6, 24, 36, 24, 6,
+                                                 4, 16, 24, 16, 4,
+                                                 1, 4, 6, 4, 1}, 256);
+            default:
+                String[] parts = spec.split("/");
+                if (parts.length > 2) {
+                    throw new IllegalArgumentException("Unknown filter: " + spec);
+                }
+                String[] values = parts[0].split(",");
+                float[] weights = new float[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    weights[i] = Float.parseFloat(values[i]);
+                }
+                float divisor = (parts.length == 2) ? Float.parseFloat(parts[1]) : 1;
+                return square(spec, weights, divisor);
+        }
+    }
+
+
+    /**
+     * Creates a square filter with no bias.
+     * @param name the name the filter is printed with
+     * @param weights the weights in row-major order, a square number of them
+     * @param divisor the number every weight is divided by
+     * @return the filter
+     */
+    private static ConvolutionKernel square(String name, float[] weights, float divisor) {
+        int size = (int) Math.round(Math.sqrt(weights.length));
+        if (divisor == 0) {
+            throw new IllegalArgumentException("Filter divisor must not be 0.");
+        }
+        float[] scaled = new float[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            scaled[i] = weights[i] / divisor;
+        }
+        return new ConvolutionKernel(name, size, size, scaled, 0);
+    }
+
+
+    /**
+     * Splits this filter into a single row of weights and a single
+     * column of weights whose passes, one after the other, apply it.
+     * The horizontal pass stores its result as 8-bit channels, so the
+     * filter is only split if both factors can be made non-negative. The
+     * row is scaled to sum to one, which also fixes the factors' signs
+     * and keeps its output a weighted average that fits in a channel up
+     * to rounding. The column takes the rest of the scale and the bias.
+     * @return the row and then the column, or null if the filter does not split so
+     */
+    public ConvolutionKernel[] separate() {
+        if (width == 1 || height == 1) {
+            return null;
+        }
+        // Factor through the largest weight, then check every weight.
+        int pivot = 0;
+        for (int i = 1; i < weights.length; i++) {
+            if (Math.abs(weights[i]) > Math.abs(weights[pivot])) {
+                pivot = i;
+            }
+        }
+        float largest = weights[pivot];
+        if (largest == 0) {
+            return null;
+        }
+        float[] row = new float[width];
+        float[] column = new float[height];
+        for (int x = 0; x < width; x++) {
+            row[x] = weights[(pivot / width) * width + x];
+        }
+        for (int y = 0; y < height; y++) {
+            column[y] = weights[y * width + pivot % width] / largest;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (Math.abs(weights[y * width + x] - column[y] * row[x]) > EPSILON * Math.abs(largest)) {
+                    return null;
+                }
+            }
+        }
+        float rowSum = 0;
+        for (int x = 0; x < width; x++) {
+            rowSum += row[x];
+        }
+        if (rowSum == 0) {
+            return null;
+        }
+        for (int x = 0; x < width; x++) {
+            row[x] /= rowSum;
+        }
+        for (int y = 0; y < height; y++) {
+            column[y] *= rowSum;
+        }
+        for (float weight : row) {
+            if (weight < 0) {
+                return null;
+            }
+        }
+        for (float weight : column) {
+            if (weight < 0) {
+                return null;
+            }
+        }
+        return new ConvolutionKernel[] {
+            new ConvolutionKernel(name + " (rows)", width, 1, row, 0),
+            new ConvolutionKernel(name + " (columns)", 1, height, column, bias)
+        };
+    }
+
+
+    /**
+     * Applies the filter to columns <code>firstColumn</code> through
+     * <code>lastColumn - 1</code> of rows <code>firstRow</code> through
+     * <code>lastRow - 1</code> of an image. The tile is swept a row at a
+     * time, adding one row of weights at a time across the whole row of
+     * the tile, so that reads run along the rows of the image.
+     * @param src the pixels to filter, in row-major order
+     * @param dst the array to write the filtered pixels into
+     * @param imageWidth the width of the image
+     * @param imageHeight the height of the image
+     * @param firstRow the first row of the tile
+     * @param lastRow the row after the last row of the tile
+     * @param firstColumn the first column of the tile
+     * @param lastColumn the column after the last column of the tile
+     */
+    public void apply(int[] src, int[] dst, int imageWidth, int imageHeight, int firstRow, int lastRow,
+                      int firstColumn, int lastColumn) {
+        int columns = lastColumn - firstColumn;
+        int sideColumns = width / 2;
+        int sideRows = height / 2;
+        float[] rt = new float[columns];
+        float[] gt = new float[columns];
+        float[] bt = new float[columns];
+        for (int row = firstRow; row < lastRow; row++) {
+            Arrays.fill(rt, bias);
+            Arrays.fill(gt, bias);
+            Arrays.fill(bt, bias);
+            for (int ky = 0; ky < height; ky++) {
+                int in = Math.min(Math.max(row + ky - sideRows, 0), imageHeight - 1) * imageWidth;
+                for (int kx = 0; kx < width; kx++) {
+                    float weight = weights[ky * width + kx];
+                    if (weight == 0) {
+                        continue;
+                    }
+                    for (int i = 0; i < columns; i++) {
+                        int column = Math.min(Math.max(firstColumn + i + kx - sideColumns, 0), imageWidth - 1);
+                        int pixel = src[in + column];
+                        rt[i] += weight * ((pixel & 0x00ff0000) >> 16);
+                        gt[i] += weight * ((pixel & 0x0000ff00) >> 8);
+                        bt[i] += weight * ((pixel & 0x000000ff) >> 0);
+                    }
+                }
+            }
+            int out = row * imageWidth + firstColumn;
+            for (int i = 0; i < columns; i++) {
+                dst[out + i] = (0xff000000) | (channel(rt[i]) << 16) | (channel(gt[i]) << 8) | channel(bt[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Rounds a weighted channel and clamps it to 0..255.
+     * @param value the weighted sum of a channel
+     * @return the channel's value
+     */
+    private static int channel(float value) {
+        return Math.min(Math.max(Math.round(value), 0), 255);
+    }
+
+
+    public int getWidth() {
+        return width;
+    }
+
+
+    public int getHeight() {
+        return height;
+    }
+
+
+    @Override
+    public String toString() {
+        return name + " (" + width + "x" + height + ")";
+    }
+}
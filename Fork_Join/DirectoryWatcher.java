@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Watches a directory for files dropped into it, and hands back each
+ * one once it has finished arriving. A file copied or uploaded into the
+ * directory is seen as soon as it is created, long before it is
+ * complete, so every new or changed file is only reported once its size
+ * and modification time have stayed the same for a quiet period. A file
+ * still being written is checked again on every poll, whether or not
+ * the directory reports another change to it.
+ *
+ * The files already in the directory when it is opened are reported
+ * like new ones. A file is reported again if it changes after it was
+ * reported, or is deleted and dropped again, but not if the directory
+ * reports a change that left it the same.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class DirectoryWatcher implements AutoCloseable {
+    private Path dir;
+    private long quietMillis;
+    private Predicate<String> accept;
+    private WatchService service;
+    private Map<Path, Version> arriving = new HashMap<>();     // Files not yet quiet, by path.
+    private Map<Path, Version> reported = new HashMap<>();     // The version of each file last reported.
+
+
+    /**
+     * A file's size and modification time, and when they were first seen.
+     */
+    private static class Version {
+        long bytes;
+        long modified;
+        long seenMillis;
+
+        Version(File file, long seenMillis) {
+            this.bytes = file.length();
+            this.modified = file.lastModified();
+            this.seenMillis = seenMillis;
+        }
+
+        boolean sameAs(Version other) {
+            return other != null && bytes == other.bytes && modified == other.modified;
+        }
+    }
+
+
+    /**
+     * Starts watching a directory.
+     * @param dir the directory to watch
+     * @param quietMillis how long a file must go unchanged to be reported
+     * @param accept whether a file, by name, should be reported at all
+     * @throws IOException if the directory cannot be watched
+     */
+    public DirectoryWatcher(File dir, long quietMillis, Predicate<String> accept) throws IOException {
+        this.dir = dir.toPath();
+        this.quietMillis = quietMillis;
+        this.accept = accept;
+        this.service = this.dir.getFileSystem().newWatchService();
+        this.dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                          StandardWatchEventKinds.ENTRY_DELETE);
+        // Registered first, so that nothing dropped while listing is missed.
+        rescan();
+    }
+
+
+    /**
+     * Waits for changes to the directory for up to half the quiet
+     * period, then returns the files that have since gone quiet.
+     * @return the files that have finished arriving, possibly none
+     * @throws IOException if the directory can no longer be watched
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<File> poll() throws IOException, InterruptedException {
+        WatchKey key = service.poll(Math.max(quietMillis / 2, 1), TimeUnit.MILLISECONDS);
+        if (key != null) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost, so look at everything again.
+                    rescan();
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    Path path = dir.resolve((Path) event.context());
+                    arriving.remove(path);
+                    reported.remove(path);
+                } else {
+                    note(dir.resolve((Path) event.context()));
+                }
+            }
+            if (!key.reset()) {
+                throw new IOException("No longer able to watch " + dir);
+            }
+        }
+        return settled();
+    }
+
+
+    /**
+     * Stops watching the directory.
+     * @throws IOException if the watch cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+
+
+    /**
+     * Notes every file in the directory as possibly arriving.
+     */
+    private void rescan() {
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                note(file.toPath());
+            }
+        }
+    }
+
+
+    /**
+     * Notes that a file may be arriving, unless it is already.
+     * @param path the file
+     */
+    private void note(Path path) {
+        if (!arriving.containsKey(path) && accept.test(path.getFileName().toString())) {
+            arriving.put(path, new Version(path.toFile(), System.currentTimeMillis()));
+        }
+    }
+
+
+    /**
+     * Checks each arriving file, restarting its quiet period if it has
+     * changed and removing it if it is gone.
+     * @return the arriving files that have been quiet long enough and
+     *         differ from the version last reported
+     */
+    private List<File> settled() {
+        List<File> settled = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Version>> it = arriving.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Version> e = it.next();
+            File file = e.getKey().toFile();
+            Version current = new Version(file, now);
+            if (!file.isFile()) {
+                it.remove();
+            } else if (!current.sameAs(e.getValue())) {
+                e.setValue(current);
+            } else if (now - e.getValue().seenMillis >= quietMillis) {
+                it.remove();
+                if (!current.sameAs(reported.put(e.getKey(), current))) {
+                    settled.add(file);
+                }
+            }
+        }
+        return settled;
+    }
+}
@@ -1,13 +1,28 @@
+import java.awt.Rectangle; 
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException; 
+import java.nio.file.Files; 
+import java.util.ArrayList; 
+import java.util.Arrays; 
+import java.util.Comparator; 
+import java.util.HashMap; 
+import java.util.Iterator; 
+import java.util.List; 
+import java.util.Map; 
+import java.util.Random; 
 import java.util.concurrent.CancellationException; 
+import java.util.concurrent.CompletableFuture; 
+import java.util.concurrent.CountedCompleter; 
 import java.util.concurrent.ExecutionException; 
+import java.util.concurrent.ExecutorService; 
+import java.util.concurrent.Executors; 
 import java.util.concurrent.ForkJoinPool; 
 import java.util.concurrent.Future; 
-import java.util.concurrent.RecursiveAction;
-import java.util.concurrent.TimeUnit; 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam; 
+import javax.imageio.ImageReader; 
+import javax.imageio.stream.ImageInputStream; 
 
 /**
  * This program iterates through the image files in a subdirectory 
@@ -15,14 +30,17 @@ import javax.imageio.ImageIO;
  * fork/join capabilities. Subdirectory should be clean expect for 
  * the desired image files. Images should be jpg files. Blurred 
  * images will be output to the same subdirectory with "blurred-" 
- * prefixed to each image's original file name. 
+ * prefixed to each image's original file name. Other directories can 
+ * be given with <code>-input</code> and <code>-output</code>, and 
+ * <code>-watch</code> keeps blurring images as they are dropped into 
+ * the input directory instead of blurring a single batch. 
  * 
  * This code is built upon sample code provided by Oracle to 
  * illustrate Java's fork/join functionality. 
  * @author Franklin D. Worrell
  * @version 13 December 2017 
  */
-public class ForkBlurBatch extends RecursiveAction{
+public class ForkBlurBatch extends CountedCompleter<Void>{
     private int[] mSource;
     private int mStart;
     private int mLength;
@@ -30,21 +48,92 @@ public class ForkBlurBatch extends RecursiveAction{
     private int imageWidth;                 // Only initialized for complete image instances. 
     private int imageHeight;                // Only initialized for complete image instances. 
     private String outputFileName = null;   // If not null, this instance is a complete image. 
-    private int mBlurWidth = 15; 			// Processing window size, should be odd.
-    protected static int sThreshold = 10000; 
+    private BufferedImage mSourceImage;     // Backed by mSource, if built from an image. 
+    private BufferedImage mDestinationImage;    // Backed by mDestination, if built from an image. 
+    private BufferedImage[] mPlaneImages;   // Planar layout: R, G, B planes, then three scratch planes. 
+    private byte[][] mPlanes;               // The arrays behind mPlaneImages. 
+    private int[] mResult;                  // The blurred pixels, once a complete image is done. 
+    private boolean mDeferWrite = false;    // If true, the caller writes the complete image. 
+    private long mAdmittedBytes = 0;        // Footprint admitted by the memory budget, if any. 
+    private long mReadyNanos = 0;           // When a complete image was read, if it was. 
+    private long mBlurStartNanos;           // When a complete image's first pass started. 
+    private int mBlurWidth = sBlurWidth;    // Processing window size, should be odd.
+    private Pass[] mPasses;                 // The passes a complete image is blurred in. 
+    private MipPyramid mPyramid = null;     // Smaller copies built from the result, if asked for. 
+    private int mThreshold = 0;             // Leaf size in pixels, chosen by the root of a pass. 
+    protected static int sBlurWidth = 15; 
+    protected static double sSigma = 0;                     // Gaussian to approximate, 0 for one box. 
+    protected static ConvolutionKernel sFilter = null;      // Applied instead of a blur, if set. 
+    protected static String sRadiusMapName = null;          // Radius map file, or "radial". 
+    protected static int sMaxRadius = 16; 
+    protected static RadiusMap sRadiusMap = null;           // Blurs by summed-area table, if set. 
+    protected static int sThreshold = 0;                    // Fixed leaf size in pixels, 0 to adapt. 
+    protected static String sInputDir = "images"; 
+    protected static String sOutputDir = null;              // Defaults to the input directory. 
+    protected static long sWatchMillis = 0;                 // Quiet period of a dropped image, 0 for one batch. 
+    protected static String sManifestName = null;           // Defaults to the output directory's; "none" blurs everything. 
+    protected static String sReportName = null;             // Stage and pool report, .json or .csv. 
+    protected static int sSampleMillis = 10;                // Time between samples of the pool. 
+    protected static int sStripRows = 0;                    // Rows per streamed strip, 0 to stream only what won't fit. 
+    protected static Kernel sKernel = Kernel.FLOAT; 
+    protected static Mode sMode = Mode.FLAT; 
+    protected static Layout sLayout = Layout.PACKED; 
+    protected static Order sOrder = Order.LARGEST; 
+    protected static long sPackPixels = 0;                  // Images smaller than this are never split. 
+    protected static int sPyramidLevels = 0;                // Halvings of each blurred image also written. 
+    protected static int sCoordinatorPort = 0;              // Port to hand out jobs on, 0 to blur locally. 
+    protected static String sCoordinatorAddress = null;     // host:port to take jobs from, if a worker. 
+    protected static int sWorkerSlots = 2;                  // Jobs a worker takes at once. 
+    protected static long sShardPixels = 8L << 20;          // Pixels per strip of a sharded image, 0 to never shard. 
+    protected static int sPipelineThreads = 0;              // Threads per I/O stage, 0 for no pipeline. 
+    protected static int sWriterThreads = 2; 
+    protected static int sDecoderThreads = Runtime.getRuntime().availableProcessors(); 
+    protected static long sPoolBudget = 256L << 20;         // Bytes of idle images kept for reuse. 
+    protected static long sFlightBudget = Runtime.getRuntime().maxMemory() / 2; 
+    protected static int sMaxInFlight = Integer.MAX_VALUE; 
+    protected static long sL2Bytes = detectL2Bytes();       // Per-core cache the tiles should fit. 
     private static ForkJoinPool pool = new ForkJoinPool(); 
+    private static ExecutorService writer;                    // Encodes and writes complete images. 
+    private static ExecutorService decoder;                   // Reads and decodes images for the batch. 
+    private static BatchStats stats = new BatchStats(); 
+    private static BlurManifest manifest = null;               // Skips images already blurred, if set. 
+    private static ThreadLocal<ImageReader> sReaders = new ThreadLocal<>();    // Each thread's last reader. 
+    private static ImageBufferPool buffers = new ImageBufferPool(sPoolBudget); 
+    private static MemoryBudget admission = new MemoryBudget(sFlightBudget, sMaxInFlight); 
+    private static SplitPolicy split = new SplitPolicy(pool.getParallelism(), 2.0, sThreshold); 
+    private static LineKernel sVectorKernel = null;            // Set only for the VECTOR kernel. 
+    private static final long LANE_MASK = 0x1fffff;          // One channel of a packed sum. 
+    private static final int MAX_PACKED_WIDTH = 8223;        // 255 * 8223 fits in a lane. 
+    private static final int MAX_SUM_RADIUS = 2047;          // 255 * 4095^2 fits in 32 bits. 
+    private static final int SUM_BAND_COLUMNS = 256;         // Sixteen cache lines of each row. 
+    private static final int MAX_PYRAMID_LEVELS = 8;         // Down to 1/256 of each side. 
 
 
     /**
-     * Creates a new <code>RecursiveAction</code> that blurs a 
+     * Creates a new <code>CountedCompleter</code> that blurs a 
+     * portion of an image file on its own. 
+     * @param src
+     * @param start
+     * @param length
+     * @param dst
+     */
+    public ForkBlurBatch(int[] src, int start, int length, int[] dst) {
+        this(null, src, start, length, dst); 
+    }
+
+
+    /**
+     * Creates a new <code>CountedCompleter</code> that blurs a 
      * portion of an image file. Used to initialize instances
      * for recursive fork calls. 
+     * @param completer the task to notify once this portion is blurred
      * @param src
      * @param start
      * @param length
      * @param dst
      */
-    public ForkBlurBatch(int[] src, int start, int length, int[] dst) {
+    ForkBlurBatch(CountedCompleter<?> completer, int[] src, int start, int length, int[] dst) {
+        super(completer); 
         mSource = src;
         mStart = start;
         mLength = length;
@@ -53,7 +142,7 @@ public class ForkBlurBatch extends RecursiveAction{
 
 
     /**
-     * Creates a new <code>RecursiveAction</code> used to represent a complete
+     * Creates a new <code>CountedCompleter</code> used to represent a complete
      * image for blurring. 
      * @param src
      * @param start
@@ -65,147 +154,2152 @@ public class ForkBlurBatch extends RecursiveAction{
      */
     public ForkBlurBatch(int[] src, int start, int length, int[] dst, 
                          int w, int h, String outputName) {
-        mSource = src;
-        mStart = start;
-        mLength = length;
-        mDestination = dst; 
+        this(null, src, start, length, dst, w, h, outputName); 
+    }
+
+
+    /**
+     * Creates a new <code>CountedCompleter</code> used to represent a complete
+     * image for blurring as part of a batch. 
+     * @param batch the task to notify once the image is blurred and written
+     * @param src
+     * @param start
+     * @param length
+     * @param dst 
+     * @param w the width of the output image
+     * @param h the height of the output image
+     * @param outputName the name of the file for the blurred image 
+     */
+    ForkBlurBatch(CountedCompleter<?> batch, int[] src, int start, int length, int[] dst, 
+                  int w, int h, String outputName) {
+        this(batch, src, start, length, dst); 
         imageWidth = w; 
         imageHeight = h; 
         outputFileName = outputName; 
     }
 
 
+    /**
+     * Creates a new <code>CountedCompleter</code> that blurs a complete 
+     * image by working directly on the arrays behind two packed RGB 
+     * images, as returned by <code>RasterAccess.packedPixels</code>. 
+     * @param batch the task to notify once the image is blurred and written, or null
+     * @param srcImage the image to blur
+     * @param dstImage an image of the same size to receive the blur
+     * @param outputName the name of the file for the blurred image 
+     */
+    public ForkBlurBatch(CountedCompleter<?> batch, BufferedImage srcImage, 
+                         BufferedImage dstImage, String outputName) {
+        this(batch, RasterAccess.packedPixels(srcImage), 0, srcImage.getWidth() * srcImage.getHeight(), 
+             RasterAccess.packedPixels(dstImage), srcImage.getWidth(), srcImage.getHeight(), 
+             outputName); 
+        mSourceImage = srcImage; 
+        mDestinationImage = dstImage; 
+    }
+
+
+    /**
+     * Creates a new <code>CountedCompleter</code> that blurs a complete 
+     * image held as planes, writing the result as packed RGB into the 
+     * array behind a destination image. 
+     * @param batch the task to notify once the image is blurred and written, or null
+     * @param planeImages the red, green, and blue planes of the image, then 
+     *                    three more of the same size for scratch, all 
+     *                    <code>TYPE_BYTE_GRAY</code>
+     * @param dstImage a packed RGB image of the same size to receive the blur
+     * @param outputName the name of the file for the blurred image 
+     */
+    public ForkBlurBatch(CountedCompleter<?> batch, BufferedImage[] planeImages, 
+                         BufferedImage dstImage, String outputName) {
+        this(batch, null, 0, dstImage.getWidth() * dstImage.getHeight(), 
+             RasterAccess.packedPixels(dstImage), dstImage.getWidth(), dstImage.getHeight(), 
+             outputName); 
+        mPlaneImages = planeImages; 
+        mPlanes = new byte[planeImages.length][]; 
+        for (int i = 0; i < planeImages.length; i++) {
+            mPlanes[i] = RasterAccess.planeBytes(planeImages[i]); 
+        }
+        mDestinationImage = dstImage; 
+    }
+
+
+    /**
+     * The arithmetic a leaf task uses to average each window of pixels. 
+     */
+    enum Kernel {
+        FLOAT,          // Sums every neighbour as a float, as in Oracle's sample. 
+        RUNNING_SUM,    // Slides integer per-channel sums along the range. 
+        FIXED_POINT,    // Slides one packed sum and divides by reciprocal multiply. 
+        VECTOR          // Slides per-channel sums a SIMD vector of pixels at a time. 
+    }
+
+
+    /**
+     * A kernel that averages part of one line of pixels, as described by 
+     * <code>blurLine</code>. Lets the Vector API kernel live in a class 
+     * that is only loaded when its incubator module is available. 
+     */
+    interface LineKernel {
+        void blurLine(int[] src, int[] dst, int base, int stride, int n, 
+                      int from, int to, int blurWidth); 
+    }
+
+
+    /**
+     * How the pixels of a complete image are held while it is blurred. 
+     */
+    enum Layout {
+        PACKED,         // One RGB int per pixel. 
+        PLANAR          // A byte plane per channel, split from the image as it is read. 
+    }
+
+
+    /**
+     * The order in which the images of a batch are read and blurred. 
+     */
+    enum Order {
+        LARGEST,        // Most pixels first, by the sizes in the images' headers. 
+        LISTED          // As the directory lists them. 
+    }
+
+
+    /**
+     * How a complete image is swept by the blur. 
+     */
+    enum Mode {
+        FLAT,           // One 1D pass over the row-major pixel array. 
+        SEPARABLE,      // A horizontal pass by row bands, then a vertical pass by column bands. 
+        TILED           // As SEPARABLE, but the vertical pass works through L2-sized tiles. 
+    }
+
+
     /**
      * Average pixels from source, write results into destination.
      */
     protected void computeDirectly() {
-        int sidePixels = (mBlurWidth - 1) / 2; 
+        blurLine(mSource, mDestination, 0, 1, mSource.length, 
+                 mStart, mStart + mLength, mBlurWidth); 
+    }
+
+
+    /**
+     * Averages elements <code>from</code> through <code>to - 1</code> of 
+     * one line of pixels with the kernel selected by <code>sKernel</code>. 
+     * Element <code>k</code> of the line is found at index 
+     * <code>base + k * stride</code>, and windows are clamped to the 
+     * line's <code>n</code> elements, so the same code blurs the flat 
+     * array, a row, or a column. 
+     * @param src the pixels to average
+     * @param dst the array receiving the averaged pixels
+     * @param base the index of the line's first element
+     * @param stride the distance between consecutive elements of the line
+     * @param n the number of elements in the line
+     * @param from the first element to average
+     * @param to one past the last element to average
+     * @param blurWidth the window size, which should be odd
+     */
+    static void blurLine(int[] src, int[] dst, int base, int stride, int n, 
+                         int from, int to, int blurWidth) {
+        if (sKernel == Kernel.VECTOR) {
+            sVectorKernel.blurLine(src, dst, base, stride, n, from, to, blurWidth); 
+        } else if (sKernel == Kernel.FIXED_POINT) {
+            scalarLine(src, dst, base, stride, n, from, to, blurWidth); 
+        } else if (sKernel == Kernel.RUNNING_SUM) {
+            runningSumLine(src, dst, base, stride, n, from, to, blurWidth); 
+        } else {
+            floatLine(src, dst, base, stride, n, from, to, blurWidth); 
+        }
+    }
+
+
+    /**
+     * The fastest scalar kernel for the given window, used directly by 
+     * the fixed-point setting and for the parts of a line the vector 
+     * kernel cannot handle. Parameters are as for <code>blurLine</code>. 
+     */
+    static void scalarLine(int[] src, int[] dst, int base, int stride, int n, 
+                           int from, int to, int blurWidth) {
+        if (blurWidth <= MAX_PACKED_WIDTH) {
+            fixedPointLine(src, dst, base, stride, n, from, to, blurWidth); 
+        } else {
+            runningSumLine(src, dst, base, stride, n, from, to, blurWidth); 
+        }
+    }
+
+
+    /**
+     * Loads the Vector API kernel and checks it against the scalar 
+     * kernel on random lines of several window sizes. If the incubator 
+     * module is missing or the two kernels disagree, the fixed-point 
+     * kernel is used instead. 
+     */
+    static void loadVectorKernel() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            System.out.println("Module jdk.incubator.vector not available; " + 
+                               "using the FIXED_POINT kernel."); 
+            sKernel = Kernel.FIXED_POINT; 
+            return; 
+        }
+        try {
+            sVectorKernel = (LineKernel) Class.forName("VectorBlurKernel") 
+                                              .getDeclaredConstructor().newInstance(); 
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.out.println("Error loading the vector kernel; using the FIXED_POINT kernel."); 
+            e.printStackTrace(); 
+            sKernel = Kernel.FIXED_POINT; 
+            return; 
+        }
+
+        Random random = new Random(); 
+        for (int blurWidth : new int[] { 1, 3, sBlurWidth, 101 }) {
+            int[] src = new int[4099]; 
+            for (int i = 0; i < src.length; i++) {
+                src[i] = random.nextInt(); 
+            }
+            int[] expected = new int[src.length]; 
+            int[] actual = new int[src.length]; 
+            scalarLine(src, expected, 0, 1, src.length, 0, src.length, blurWidth); 
+            sVectorKernel.blurLine(src, actual, 0, 1, src.length, 0, src.length, blurWidth); 
+            if (!Arrays.equals(expected, actual)) {
+                System.out.println("Vector kernel disagrees with the scalar kernel for a window of " + 
+                                   blurWidth + "; using the FIXED_POINT kernel."); 
+                sKernel = Kernel.FIXED_POINT; 
+                return; 
+            }
+        }
+        System.out.println("Vector kernel self-check passed."); 
+    }
+
+
+    /**
+     * The kernel from Oracle's sample, which re-reads the whole window 
+     * for every pixel and divides each neighbour's channels as floats. 
+     * Parameters are as for <code>blurLine</code>. 
+     */
+    private static void floatLine(int[] src, int[] dst, int base, int stride, int n, 
+                                  int from, int to, int blurWidth) {
+        int sidePixels = (blurWidth - 1) / 2; 
         // Calculate the average.
-        for (int index = mStart; index < mStart + mLength; index++) { 
+        for (int index = from; index < to; index++) { 
             float rt = 0,
                   gt = 0,
                   bt = 0;
             for (int mi = -sidePixels; mi <= sidePixels; mi++) {
-                int mindex = Math.min(Math.max(mi + index, 0), mSource.length - 1);
-                int pixel = mSource[mindex];
-                rt += (float) ((pixel & 0x00ff0000) >> 16) / mBlurWidth;
-                gt += (float) ((pixel & 0x0000ff00) >> 8) / mBlurWidth;
-                bt += (float) ((pixel & 0x000000ff) >> 0) / mBlurWidth;
+                int mindex = Math.min(Math.max(mi + index, 0), n - 1);
+                int pixel = src[base + mindex * stride];
+                rt += (float) ((pixel & 0x00ff0000) >> 16) / blurWidth;
+                gt += (float) ((pixel & 0x0000ff00) >> 8) / blurWidth;
+                bt += (float) ((pixel & 0x000000ff) >> 0) / blurWidth;
             } 
             // Reassemble destination pixel. 
             int dpixel = (0xff000000) | (((int) rt) << 16) | (((int) gt) << 8) | (((int) bt) << 0);
-            mDestination[index] = dpixel;
+            dst[base + index * stride] = dpixel;
+        }
+    }
+
+
+    /**
+     * Averages pixels by sliding a window of per-channel sums along the 
+     * line. Each step adds the pixel entering the window and drops the 
+     * one leaving it, so the cost per pixel does not depend on the 
+     * window size. The sums are exact, so a channel may come out one 
+     * higher than the float kernel, which loses a little to rounding. 
+     * Parameters are as for <code>blurLine</code>. 
+     */
+    private static void runningSumLine(int[] src, int[] dst, int base, int stride, int n, 
+                                       int from, int to, int blurWidth) {
+        int sidePixels = (blurWidth - 1) / 2; 
+        int last = n - 1; 
+        int rs = 0,
+            gs = 0,
+            bs = 0; 
+        // Prime the sums with the window around the first pixel. 
+        for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+            int pixel = src[base + Math.min(Math.max(from + mi, 0), last) * stride]; 
+            rs += (pixel & 0x00ff0000) >> 16; 
+            gs += (pixel & 0x0000ff00) >> 8; 
+            bs += (pixel & 0x000000ff) >> 0; 
+        }
+        for (int index = from; index < to; index++) {
+            dst[base + index * stride] = (0xff000000) | ((rs / blurWidth) << 16) 
+                                         | ((gs / blurWidth) << 8) | ((bs / blurWidth) << 0); 
+            // Slide the window one pixel along, clamping at the edges. 
+            int leaving = src[base + Math.max(index - sidePixels, 0) * stride]; 
+            int entering = src[base + Math.min(index + sidePixels + 1, last) * stride]; 
+            rs += ((entering & 0x00ff0000) >> 16) - ((leaving & 0x00ff0000) >> 16); 
+            gs += ((entering & 0x0000ff00) >> 8) - ((leaving & 0x0000ff00) >> 8); 
+            bs += ((entering & 0x000000ff) >> 0) - ((leaving & 0x000000ff) >> 0); 
+        }
+    }
+
+
+    /**
+     * Spreads the red, green, and blue channels of a pixel into 21-bit 
+     * lanes of a <code>long</code>, so that adding packed pixels sums 
+     * all three channels at once. 
+     * @param pixel an RGB pixel
+     * @return the pixel's channels in separate lanes
+     */
+    private static long pack(int pixel) {
+        return ((long) (pixel & 0x00ff0000) << 26) | ((pixel & 0x0000ff00) << 13) 
+               | (pixel & 0x000000ff); 
+    }
+
+
+    /**
+     * Averages pixels with integer arithmetic only. The window is slid 
+     * along the line as one packed sum of all three channels, and each 
+     * lane of the sum is divided by the window size with a multiply by 
+     * a reciprocal scaled by 2^40 and a shift. The reciprocal is rounded 
+     * up, which is exact for every sum a window can hold, so the output 
+     * matches the running-sum kernel. Windows wider than 
+     * <code>MAX_PACKED_WIDTH</code> would overflow a lane. Parameters 
+     * are as for <code>blurLine</code>. 
+     */
+    private static void fixedPointLine(int[] src, int[] dst, int base, int stride, int n, 
+                                       int from, int to, int blurWidth) {
+        int sidePixels = (blurWidth - 1) / 2; 
+        int last = n - 1; 
+        long reciprocal = ((1L << 40) + blurWidth - 1) / blurWidth; 
+        long sums = 0; 
+        // Prime the sums with the window around the first pixel. 
+        for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+            sums += pack(src[base + Math.min(Math.max(from + mi, 0), last) * stride]); 
+        }
+        for (int index = from; index < to; index++) {
+            long r = ((sums >>> 42) & LANE_MASK) * reciprocal >>> 40; 
+            long g = ((sums >>> 21) & LANE_MASK) * reciprocal >>> 40; 
+            long b = (sums & LANE_MASK) * reciprocal >>> 40; 
+            dst[base + index * stride] = (0xff000000) | ((int) r << 16) | ((int) g << 8) | (int) b; 
+            // Slide the window one pixel along, clamping at the edges. 
+            sums += pack(src[base + Math.min(index + sidePixels + 1, last) * stride]) 
+                    - pack(src[base + Math.max(index - sidePixels, 0) * stride]); 
+        }
+    }
+
+
+    /**
+     * Blurs columns <code>firstColumn</code> through <code>lastColumn - 1</code> 
+     * of an image vertically, in rows <code>firstRow</code> through 
+     * <code>lastRow - 1</code>, with the same result as calling 
+     * <code>blurLine</code> on each column. Instead of walking down each 
+     * column, which touches a new cache line at every pixel, the tile 
+     * is swept a row at a time while a window sum is kept for each of 
+     * its columns. The float kernel re-sums each window in the same 
+     * order <code>floatLine</code> does; the others slide packed sums as 
+     * <code>fixedPointLine</code> does, whose output they all share. 
+     * @param src the pixels to blur, in row-major order
+     * @param dst the array to write the blurred pixels into
+     * @param width the width of the image
+     * @param height the height of the image, at whose edges windows are clamped
+     * @param firstRow the first row of the tile
+     * @param lastRow the row after the last row of the tile
+     * @param firstColumn the first column of the tile
+     * @param lastColumn the column after the last column of the tile
+     * @param blurWidth the window size, which should be odd
+     */
+    static void blurTile(int[] src, int[] dst, int width, int height, int firstRow, int lastRow, 
+                         int firstColumn, int lastColumn, int blurWidth) {
+        int sidePixels = (blurWidth - 1) / 2; 
+        int last = height - 1; 
+        int columns = lastColumn - firstColumn; 
+        if (sKernel == Kernel.FLOAT) {
+            float[] rt = new float[columns]; 
+            float[] gt = new float[columns]; 
+            float[] bt = new float[columns]; 
+            for (int row = firstRow; row < lastRow; row++) {
+                Arrays.fill(rt, 0); 
+                Arrays.fill(gt, 0); 
+                Arrays.fill(bt, 0); 
+                for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+                    int in = Math.min(Math.max(row + mi, 0), last) * width + firstColumn; 
+                    for (int i = 0; i < columns; i++) {
+                        int pixel = src[in + i]; 
+                        rt[i] += (float) ((pixel & 0x00ff0000) >> 16) / blurWidth; 
+                        gt[i] += (float) ((pixel & 0x0000ff00) >> 8) / blurWidth; 
+                        bt[i] += (float) ((pixel & 0x000000ff) >> 0) / blurWidth; 
+                    }
+                }
+                int out = row * width + firstColumn; 
+                for (int i = 0; i < columns; i++) {
+                    dst[out + i] = (0xff000000) | (((int) rt[i]) << 16) | (((int) gt[i]) << 8) | ((int) bt[i]); 
+                }
+            }
+            return; 
+        }
+        if (blurWidth > MAX_PACKED_WIDTH) {
+            for (int column = firstColumn; column < lastColumn; column++) {
+                runningSumLine(src, dst, column, width, height, firstRow, lastRow, blurWidth); 
+            }
+            return; 
+        }
+        long reciprocal = ((1L << 40) + blurWidth - 1) / blurWidth; 
+        long[] sums = new long[columns]; 
+        // Prime the sums with the window around the first row. 
+        for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+            int in = Math.min(Math.max(firstRow + mi, 0), last) * width + firstColumn; 
+            for (int i = 0; i < columns; i++) {
+                sums[i] += pack(src[in + i]); 
+            }
+        }
+        for (int row = firstRow; row < lastRow; row++) {
+            int out = row * width + firstColumn; 
+            for (int i = 0; i < columns; i++) {
+                long r = ((sums[i] >>> 42) & LANE_MASK) * reciprocal >>> 40; 
+                long g = ((sums[i] >>> 21) & LANE_MASK) * reciprocal >>> 40; 
+                long b = (sums[i] & LANE_MASK) * reciprocal >>> 40; 
+                dst[out + i] = (0xff000000) | ((int) r << 16) | ((int) g << 8) | (int) b; 
+            }
+            // Slide every column's window down one row, clamping at the edges. 
+            int entering = Math.min(row + sidePixels + 1, last) * width + firstColumn; 
+            int leaving = Math.max(row - sidePixels, 0) * width + firstColumn; 
+            for (int i = 0; i < columns; i++) {
+                sums[i] += pack(src[entering + i]) - pack(src[leaving + i]); 
+            }
         }
     }
 
 
     /**
      * Recursively divides each image if it is larger than the 
-     * threshold specified as a class variable. 
+     * threshold the split policy chose for it. Each split forks its 
+     * second half and carries on with the first, so that no worker 
+     * waits to join another. A portion completes once it and all the 
+     * portions it forked are blurred. A complete image is instead 
+     * blurred as a sequence of passes, one after another. 
      */
     @Override
-    protected void compute() {
-        if (mLength < sThreshold) {
-            computeDirectly();
-            return;
-        }
-        int split = mLength / 2;
-        invokeAll(new ForkBlurBatch(mSource, mStart, split, mDestination),
-                  new ForkBlurBatch(mSource, mStart + split, mLength - split, mDestination));
-        
-        // This instance was a complete image and not a recursive fork. 
-        if (outputFileName != null) {   
-            BufferedImage dstImage = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB); 
-            dstImage.setRGB(0, 0, imageWidth, imageHeight, mDestination, 0, imageWidth); 
-            File dstFile = new File("images", outputFileName); 
-            System.out.println("Beginning write of: " + outputFileName); 
-            try {
-                ImageIO.write(dstImage, "jpg", dstFile); 
-            } catch (IOException e) {
-                System.out.println("Error writing output image."); 
-                e.printStackTrace(); 
+    public void compute() {
+        if (outputFileName != null) {
+            mBlurStartNanos = System.nanoTime(); 
+            if (mReadyNanos > 0) {
+                stats.record(outputFileName, BatchStats.Stage.QUEUE, mBlurStartNanos - mReadyNanos); 
             }
-            System.out.println("Finish write of: " + outputFileName); 
+            mPasses = passes(); 
+            startPass(0); 
+            return; 
+        }
+        if (mThreshold == 0) {
+            mThreshold = split.threshold(mLength); 
         }
+        while (mLength > 1 && mLength >= mThreshold) {
+            int half = mLength / 2;
+            ForkBlurBatch fork = new ForkBlurBatch(this, mSource, mStart + half, mLength - half, mDestination); 
+            fork.mBlurWidth = mBlurWidth; 
+            fork.mThreshold = mThreshold; 
+            addToPendingCount(1); 
+            fork.fork(); 
+            mLength = half; 
+        }
+        long startTime = System.nanoTime(); 
+        computeDirectly();
+        split.recordLeaf(mLength, System.nanoTime() - startTime); 
+        tryComplete(); 
     }
 
 
     /**
-     * The thread that uniquely handles reading in the images before 
-     * they are blurred. This thread also waits for all others to 
-     * complete so that all threads can execute to completion in the 
-     * <code>ForkJoinPool</code>. 
+     * One pass over a complete image, such as the horizontal half of a 
+     * <code>SEPARABLE</code> blur. 
      */
-    private static class IOThread extends RecursiveAction {
+    interface Pass {
         /**
-         * Loads the images for blurring, then calls shutdown on the ForkJoinPool. 
+         * Creates the root task of the pass. 
+         * @param completer the task the root must complete once the pass is done
+         * @return the root task, not yet forked
          */
-        @Override
-        public void compute() {
-            // Get the array of files for processing from "images" subdirectory. 
-            String srcDirName = "images";       
-            File srcDir = new File(srcDirName); 
-            File[] srcFiles = srcDir.listFiles((d, s) -> {
-                return s.toLowerCase().endsWith(".jpg"); 
-            }); 
-            
-            createAndStartTasks(srcFiles); 
+        CountedCompleter<Void> create(CountedCompleter<?> completer); 
+    }
 
-            // Once all tasks added to the FJPool, request termination when they finish. 
-            pool.shutdown();
-        }
 
-        
+    /**
+     * One pass over a complete image, before it is told which arrays to use. 
+     */
+    interface ArrayPass {
         /**
-         * Performs the input I/O for each image file, creates a 
-         * <code>RecursiveAction</code> for that image, then adds that
-         * <code>RecursiveAction</code> to the <code>ForkJoinPool</code>. 
-         * @param srcFiles an array of image file objects to blur
+         * Creates the root task of the pass. 
+         * @param completer the task the root must complete once the pass is done
+         * @param src the array the pass reads
+         * @param dst the array the pass writes
+         * @return the root task, not yet forked
          */
-        private void createAndStartTasks(File[] srcFiles) {
-            for (File srcFile : srcFiles) {
-                BufferedImage srcImage = null; 
-                try {
-                    srcImage = ImageIO.read(srcFile); 
-                } catch (IOException e) {
-                    System.out.println("Error opening source image."); 
-                    e.printStackTrace(); 
+        CountedCompleter<Void> create(CountedCompleter<?> completer, int[] src, int[] dst); 
+    }
+
+
+    /**
+     * Lists the passes that blur this complete image in the current 
+     * mode, and notes which array will hold the result. A single box 
+     * blur takes one pass in <code>FLAT</code> mode and two otherwise. 
+     * When a sigma is set, three boxes are blurred one after another. 
+     * When a filter is set, it is applied instead of any box, and when 
+     * a radius map is set, the image is blurred from summed-area tables. 
+     * Each pass reads the array the previous one wrote and writes the 
+     * other, so the passes ping-pong between the source and destination 
+     * arrays and need no others. If the image has a pyramid, the last 
+     * pass also builds it as each tile is finished, if that pass runs by 
+     * tiles, and otherwise a pass of its own builds it afterwards. 
+     * @return the passes, in the order they must run
+     */
+    private Pass[] passes() {
+        if (mPlanes != null) {
+            return planarPasses((sSigma > 0) ? gaussianBoxes(sSigma, 3) : new int[] { mBlurWidth }); 
+        }
+        List<ArrayPass[]> steps = new ArrayList<>(); 
+        if (sFilter != null) {
+            steps.add(filterPasses(sFilter)); 
+        } else if (sRadiusMap != null) {
+            mResult = mDestination; 
+            return summedAreaPasses(sRadiusMap); 
+        } else if (sSigma > 0) {
+            for (int width : gaussianBoxes(sSigma, 3)) {
+                steps.add(boxPasses(width)); 
+            }
+        } else {
+            steps.add(boxPasses(mBlurWidth)); 
+        }
+        ArrayPass[] lastStep = steps.get(steps.size() - 1); 
+        ArrayPass last = lastStep[lastStep.length - 1]; 
+        boolean fused = mPyramid != null && last instanceof TilePass; 
+        if (fused) {
+            TilePass tiles = (TilePass) last; 
+            lastStep[lastStep.length - 1] = new TilePass(imageWidth, imageHeight, alignToPyramid(tiles.mTileRows), 
+                                                         alignToPyramid(tiles.mTileColumns), withPyramid(tiles.mOp)); 
+        }
+        List<Pass> passes = new ArrayList<>(); 
+        int[] in = mSource; 
+        int[] out = mDestination; 
+        for (ArrayPass[] step : steps) {
+            for (ArrayPass pass : step) {
+                int[] from = in; 
+                int[] to = out; 
+                passes.add(c -> pass.create(c, from, to)); 
+                in = to; 
+                out = from; 
+            }
+        }
+        mResult = in; 
+        if (mPyramid != null && !fused) {
+            passes.add(pyramidPass()); 
+        }
+        return passes.toArray(new Pass[0]); 
+    }
+
+
+    /**
+     * Adds building this image's pyramid to the work done on each tile 
+     * of a pass, once the tile has been written. 
+     * @param op the work to do on each tile first, or null for none
+     * @return the combined work, or <code>op</code> itself if the image has no pyramid
+     */
+    private TileOp withPyramid(TileOp op) {
+        if (mPyramid == null) {
+            return op; 
+        }
+        return (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> {
+            if (op != null) {
+                op.apply(src, dst, firstRow, lastRow, firstColumn, lastColumn); 
+            }
+            mPyramid.downsample(dst, firstRow, lastRow, firstColumn, lastColumn); 
+        }; 
+    }
+
+
+    /**
+     * Rounds a tile's rows or columns up to whole boxes of the smallest 
+     * level of this image's pyramid, so that each tile can build its 
+     * part of every level. 
+     * @param size the rows or columns of a tile
+     * @return the size rounded up, or unchanged if the image has no pyramid
+     */
+    private int alignToPyramid(int size) {
+        if (mPyramid == null) {
+            return size; 
+        }
+        int alignment = mPyramid.getAlignment(); 
+        return (size + alignment - 1) / alignment * alignment; 
+    }
+
+
+    /**
+     * Creates a pass that only builds this image's pyramid from the 
+     * result, for a blur whose last pass does not run by tiles. Each tile 
+     * is eight of the smallest level's boxes tall, and as wide as lets it 
+     * fit in half the L2 cache. 
+     * @return the pass
+     */
+    private Pass pyramidPass() {
+        int[] result = mResult; 
+        int tileRows = 8 * mPyramid.getAlignment(); 
+        int tileColumns = alignToPyramid((int) Math.max(sL2Bytes / 2 / (4 * tileRows), 1)); 
+        return c -> new Tiles(c, null, result, 0, imageHeight, 0, imageWidth, 
+                              tileRows, tileColumns, withPyramid(null)); 
+    }
+
+
+    /**
+     * Lists the passes of one box blur in the current mode, each still 
+     * to be given the arrays it reads and writes. 
+     * @param width the width of the box, which should be odd
+     * @return the passes, in the order they must run
+     */
+    private ArrayPass[] boxPasses(int width) {
+        if (sMode == Mode.SEPARABLE) {
+            return new ArrayPass[] {
+                (c, src, dst) -> new RowBand(c, src, dst, imageWidth, 0, imageHeight, width), 
+                (c, src, dst) -> new ColumnBand(c, src, dst, imageWidth, imageHeight, 
+                                                0, imageWidth, width)
+            }; 
+        }
+        if (sMode == Mode.TILED) {
+            return new ArrayPass[] {
+                (c, src, dst) -> new RowBand(c, src, dst, imageWidth, 0, imageHeight, width), 
+                tilePass(width + 4, (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                         blurTile(src, dst, imageWidth, imageHeight, firstRow, lastRow, 
+                                  firstColumn, lastColumn, width))
+            }; 
+        }
+        return new ArrayPass[] {
+            (c, src, dst) -> {
+                ForkBlurBatch piece = new ForkBlurBatch(c, src, mStart, mLength, dst); 
+                piece.mBlurWidth = width; 
+                return piece; 
+            }
+        }; 
+    }
+
+
+    /**
+     * Lists the passes that blur this complete image when it is held as 
+     * planes. Each box is blurred as in <code>FLAT</code> mode or as a 
+     * horizontal pass and a vertical pass of tiles, and each pass runs 
+     * the three channels as independent subtasks, ping-ponging between 
+     * each channel's plane and its scratch plane. A last pass packs the 
+     * planes into the destination array. 
+     * @param widths the widths of the boxes to blur with, in order
+     * @return the passes, in the order they must run
+     */
+    private Pass[] planarPasses(int[] widths) {
+        int w = imageWidth; 
+        int h = imageHeight; 
+        List<Pass> passes = new ArrayList<>(); 
+        byte[][] in = { mPlanes[0], mPlanes[1], mPlanes[2] }; 
+        byte[][] out = { mPlanes[3], mPlanes[4], mPlanes[5] }; 
+        for (int width : widths) {
+            for (int step = 0; step < ((sMode == Mode.FLAT) ? 1 : 2); step++) {
+                TileOp[] ops = new TileOp[3]; 
+                for (int channel = 0; channel < 3; channel++) {
+                    byte[] from = in[channel]; 
+                    byte[] to = out[channel]; 
+                    if (sMode == Mode.FLAT) {
+                        ops[channel] = (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                                       PlanarBlur.line(from, to, 0, w * h, firstRow * w, lastRow * w, width); 
+                    } else if (step == 0) {
+                        ops[channel] = (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> {
+                            for (int row = firstRow; row < lastRow; row++) {
+                                PlanarBlur.line(from, to, row * w, w, 0, w, width); 
+                            }
+                        }; 
+                    } else {
+                        ops[channel] = (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                                       PlanarBlur.tile(from, to, w, h, firstRow, lastRow, 
+                                                       firstColumn, lastColumn, width); 
+                    }
                 }
+                // Rows are split between tasks whole; columns by tiles sized 
+                // as for packed pixels, but of one byte per pixel. 
+                boolean rows = sMode == Mode.FLAT || step == 0; 
+                int tileRows = rows ? 1 : Math.max(8 * width, 64); 
+                int tileColumns = rows ? w : (int) Math.max(sL2Bytes / 2 / (width + 6) / 64 * 64, 64); 
+                passes.add(c -> new Channels(c, ops, w, h, tileRows, tileColumns)); 
+                byte[][] swap = in; 
+                in = out; 
+                out = swap; 
+            }
+        }
+        byte[][] result = in; 
+        TileOp pack = (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                      PlanarBlur.pack(result[0], result[1], result[2], dst, firstRow * w, lastRow * w); 
+        passes.add(c -> new Tiles(c, null, mDestination, 0, h, 0, w, alignToPyramid(1), w, withPyramid(pack))); 
+        mResult = mDestination; 
+        return passes.toArray(new Pass[0]); 
+    }
+
+
+    /**
+     * One pass over the planes of a planar image. Each channel is forked 
+     * as an independent <code>Tiles</code> task, and the pass completes 
+     * once all three have. 
+     */
+    private static class Channels extends CountedCompleter<Void> {
+        private TileOp[] mOps; 
+        private int mWidth; 
+        private int mHeight; 
+        private int mTileRows; 
+        private int mTileColumns; 
+
+        Channels(CountedCompleter<?> completer, TileOp[] ops, int width, int height, 
+                 int tileRows, int tileColumns) {
+            super(completer); 
+            mOps = ops; 
+            mWidth = width; 
+            mHeight = height; 
+            mTileRows = tileRows; 
+            mTileColumns = tileColumns; 
+        }
+
+        @Override
+        public void compute() {
+            addToPendingCount(mOps.length); 
+            for (TileOp op : mOps) {
+                new Tiles(this, null, null, 0, mHeight, 0, mWidth, mTileRows, mTileColumns, op).fork(); 
+            }
+            tryComplete(); 
+        }
+    } // end class Channels 
+
+
+    /**
+     * Lists the passes that apply a convolution filter. A separable 
+     * filter is applied as a horizontal pass and then a vertical one, 
+     * and any other in a single pass of 2D tiles. 
+     * @param filter the filter to apply
+     * @return the passes, in the order they must run
+     */
+    private ArrayPass[] filterPasses(ConvolutionKernel filter) {
+        ConvolutionKernel[] factors = filter.separate(); 
+        ConvolutionKernel[] kernels = (factors != null) ? factors : new ConvolutionKernel[] { filter }; 
+        ArrayPass[] passes = new ArrayPass[kernels.length]; 
+        for (int i = 0; i < kernels.length; i++) {
+            ConvolutionKernel kernel = kernels[i]; 
+            passes[i] = tilePass(kernel.getHeight() + 1, 
+                                 (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                                 kernel.apply(src, dst, imageWidth, imageHeight, firstRow, lastRow, 
+                                              firstColumn, lastColumn)); 
+        }
+        return passes; 
+    }
+
+
+    /**
+     * Creates a pass over this complete image by tiles. A tile is as wide 
+     * as lets the rows it reads or keeps for each row it writes share half 
+     * the L2 cache, in whole cache lines. It is tall enough that reading 
+     * its halo costs little. 
+     * @param windowRows the rows a tile reads or keeps in the cache for each row it writes
+     * @param op the work to do on each tile
+     * @return the pass
+     */
+    private ArrayPass tilePass(int windowRows, TileOp op) {
+        int tileColumns = (int) Math.max(sL2Bytes / 2 / (4 * windowRows) / 16 * 16, 16); 
+        int tileRows = Math.max(8 * windowRows, 64); 
+        return new TilePass(imageWidth, imageHeight, tileRows, tileColumns, op); 
+    }
+
+
+    /**
+     * A pass over a complete image by tiles of a fixed size. Unlike other 
+     * passes, it can still be told apart and changed once it is listed, 
+     * so that the last pass of a blur can also build the image's pyramid. 
+     */
+    private static class TilePass implements ArrayPass {
+        private int mWidth; 
+        private int mHeight; 
+        private int mTileRows; 
+        private int mTileColumns; 
+        private TileOp mOp; 
+
+        TilePass(int width, int height, int tileRows, int tileColumns, TileOp op) {
+            mWidth = width; 
+            mHeight = height; 
+            mTileRows = tileRows; 
+            mTileColumns = tileColumns; 
+            mOp = op; 
+        }
+
+        @Override
+        public CountedCompleter<Void> create(CountedCompleter<?> completer, int[] src, int[] dst) {
+            return new Tiles(completer, src, dst, 0, mHeight, 0, mWidth, mTileRows, mTileColumns, mOp); 
+        }
+    } // end class TilePass 
 
-                // Image loaded properly, so create a new RecursiveAction.
-                if (srcImage != null) {
-                    int w = srcImage.getWidth(); 
-                    int h = srcImage.getHeight(); 
-                    String outputName = "blurred-" + srcFile.getName(); 
-                    int[] src = srcImage.getRGB(0, 0, w, h, null, 0, w); 
-                    int[] dst = new int[src.length]; 
-                    ForkBlurBatch fb = new ForkBlurBatch(src, 0, src.length, 
-                                                         dst, w, h, outputName); 
-                    System.out.println("Invoking FJPool for: " + outputName); 
-                    // This call is asynchronous, so blurring begins immediately. 
-                    pool.execute(fb); 
+
+    /**
+     * Lists the passes of a blur whose radius varies from pixel to pixel. 
+     * A summed-area table of each channel is built in two passes, each 
+     * entry holding the sum of the channel over the rectangle from the 
+     * top left of the image to its pixel: the first pass sums along the 
+     * rows in bands of rows, and the second adds the rows together down 
+     * bands of columns. The last pass then finds each pixel's box sum 
+     * from four entries, however large its radius. 
+     * @param map the radius of each pixel
+     * @return the passes, in the order they must run
+     */
+    private Pass[] summedAreaPasses(RadiusMap map) {
+        int w = imageWidth; 
+        int h = imageHeight; 
+        // A zero row and column before the image save checks at its edges. 
+        int[][] sums = new int[3][(w + 1) * (h + 1)]; 
+        TileOp rowSums = (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                         sumRows(src, sums, w, firstRow, lastRow); 
+        TileOp columnSums = (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                            sumColumns(sums, w, h, firstColumn, lastColumn); 
+        TileOp boxes = (src, dst, firstRow, lastRow, firstColumn, lastColumn) -> 
+                       blurFromSums(sums, dst, w, h, map, firstRow, lastRow, firstColumn, lastColumn); 
+        return new Pass[] {
+            c -> new Tiles(c, mSource, mDestination, 0, h, 0, w, 1, w, rowSums), 
+            c -> new Tiles(c, mSource, mDestination, 0, h, 0, w, h, SUM_BAND_COLUMNS, columnSums), 
+            c -> new Tiles(c, mSource, mDestination, 0, h, 0, w, alignToPyramid(1), w, withPyramid(boxes))
+        }; 
+    }
+
+
+    /**
+     * Fills rows of the summed-area tables with the running sums of 
+     * each channel along the same rows of an image. 
+     * @param src the image's pixels, in row-major order
+     * @param sums the red, green, and blue tables, one row and column larger than the image
+     * @param width the width of the image
+     * @param firstRow the first row of the image to sum
+     * @param lastRow the row after the last row to sum
+     */
+    private static void sumRows(int[] src, int[][] sums, int width, int firstRow, int lastRow) {
+        int[] rt = sums[0]; 
+        int[] gt = sums[1]; 
+        int[] bt = sums[2]; 
+        for (int row = firstRow; row < lastRow; row++) {
+            int in = row * width; 
+            int out = (row + 1) * (width + 1) + 1; 
+            int rs = 0,
+                gs = 0,
+                bs = 0; 
+            for (int x = 0; x < width; x++) {
+                int pixel = src[in + x]; 
+                rs += (pixel & 0x00ff0000) >> 16; 
+                gs += (pixel & 0x0000ff00) >> 8; 
+                bs += (pixel & 0x000000ff) >> 0; 
+                rt[out + x] = rs; 
+                gt[out + x] = gs; 
+                bt[out + x] = bs; 
+            }
+        }
+    }
+
+
+    /**
+     * Adds each row of the summed-area tables into the row below it, 
+     * from top to bottom, for a band of columns. The band is swept a row 
+     * at a time so that the reads run along the rows. The sums may 
+     * overflow an <code>int</code>, but since they are only ever 
+     * subtracted from each other, the differences still come out right. 
+     * @param sums the red, green, and blue tables, filled by <code>sumRows</code>
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param firstColumn the first column of the image in the band
+     * @param lastColumn the column after the last column in the band
+     */
+    private static void sumColumns(int[][] sums, int width, int height, int firstColumn, int lastColumn) {
+        int stride = width + 1; 
+        for (int[] table : sums) {
+            for (int row = 2; row <= height; row++) {
+                int above = (row - 1) * stride + 1; 
+                int here = row * stride + 1; 
+                for (int x = firstColumn; x < lastColumn; x++) {
+                    table[here + x] += table[above + x]; 
                 }
             }
         }
-    } // end class IOThread 
+    }
+
 
-    
     /**
-     * Iterates through subdirectory of current directory and
-     * blurs each image file found there. 
-     */ 
-    public static void main(String[] args) throws Exception {
-        long startTime = System.currentTimeMillis(); 
-        pool.invoke(new ForkBlurBatch.IOThread()); 
-                           
-        // Await termination of all threads in ForkJoinPool before exiting. 
-        try {
-            pool.awaitTermination(1, TimeUnit.MINUTES); 
-        } catch (InterruptedException e) {
-            e.printStackTrace(); 
+     * Averages each pixel of a tile over a square of the radius the map 
+     * gives it, found from four entries of each summed-area table. The 
+     * square is cut off at the edges of the image, and the average taken 
+     * over the pixels that remain. 
+     * @param sums the red, green, and blue summed-area tables
+     * @param dst the array to write the blurred pixels into
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param map the radius of each pixel
+     * @param firstRow the first row of the tile
+     * @param lastRow the row after the last row of the tile
+     * @param firstColumn the first column of the tile
+     * @param lastColumn the column after the last column of the tile
+     */
+    private static void blurFromSums(int[][] sums, int[] dst, int width, int height, RadiusMap map, 
+                                     int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        int stride = width + 1; 
+        int[] rt = sums[0]; 
+        int[] gt = sums[1]; 
+        int[] bt = sums[2]; 
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int x = firstColumn; x < lastColumn; x++) {
+                int radius = map.radius(x, row, width, height); 
+                int left = Math.max(x - radius, 0); 
+                int right = Math.min(x + radius, width - 1) + 1; 
+                int top = Math.max(row - radius, 0) * stride; 
+                int bottom = (Math.min(row + radius, height - 1) + 1) * stride; 
+                long area = (long) (right - left) * ((bottom - top) / stride); 
+                // Box sums fit in 32 bits, so read them as unsigned. 
+                long r = (rt[bottom + right] - rt[top + right] - rt[bottom + left] + rt[top + left]) & 0xffffffffL; 
+                long g = (gt[bottom + right] - gt[top + right] - gt[bottom + left] + gt[top + left]) & 0xffffffffL; 
+                long b = (bt[bottom + right] - bt[top + right] - bt[bottom + left] + bt[top + left]) & 0xffffffffL; 
+                dst[row * width + x] = (0xff000000) | ((int) (r / area) << 16) 
+                                       | ((int) (g / area) << 8) | ((int) (b / area)); 
+            }
         }
+    }
 
-        System.out.println("Blurring all images took " + 
-                           (System.currentTimeMillis() - startTime) + " milliseconds."); 
+
+    /**
+     * Computes the widths of boxes whose successive blurs approximate a 
+     * Gaussian blur. Blurring with a box of width <code>w</code> adds 
+     * <code>(w * w - 1) / 12</code> to the variance, so the widths are 
+     * the two odd widths around the one that would give the Gaussian's 
+     * variance in <code>n</code> equal boxes, mixed to match it best. 
+     * @param sigma the standard deviation of the Gaussian, in pixels
+     * @param n the number of boxes
+     * @return the odd box widths, narrowest first
+     */
+    static int[] gaussianBoxes(double sigma, int n) {
+        double ideal = Math.sqrt(12 * sigma * sigma / n + 1); 
+        int lower = (int) Math.floor(ideal); 
+        if (lower % 2 == 0) {
+            lower--; 
+        }
+        int upper = lower + 2; 
+        long lowerCount = Math.round((12 * sigma * sigma - n * lower * lower - 4 * n * lower - 3 * n) 
+                                     / (-4.0 * lower - 4)); 
+        int[] widths = new int[n]; 
+        for (int i = 0; i < n; i++) {
+            widths[i] = (i < lowerCount) ? lower : upper; 
+        }
+        return widths; 
+    }
+
+
+    /**
+     * Forks a pass over this complete image. The pass reports to a 
+     * <code>PassDone</code> that starts whatever comes next. 
+     * @param index the position of the pass in <code>mPasses</code>
+     */
+    private void startPass(int index) {
+        mPasses[index].create(new PassDone(this, index)).fork(); 
+    }
+
+
+    /**
+     * Starts the step that follows a finished pass: the next pass, or 
+     * else the write of the image. The split policy first learns from 
+     * the pass's leaves. Either is counted as pending on this 
+     * task so that the image completes only once it is done. 
+     * @param index the position of the finished pass in <code>mPasses</code>
+     */
+    private void passDone(int index) {
+        split.adjust(getPool().getStealCount()); 
+        if (index + 1 < mPasses.length) {
+            addToPendingCount(1); 
+            startPass(index + 1); 
+            return; 
+        }
+        stats.record(outputFileName, BatchStats.Stage.BLUR, System.nanoTime() - mBlurStartNanos); 
+        if (!mDeferWrite) {
+            addToPendingCount(1); 
+            scheduleWrite(); 
+        }
+    }
+
+
+    /**
+     * The completer of one pass over a complete image. Its 
+     * <code>onCompletion</code> runs as the last task of the pass 
+     * finishes, before the image itself is notified. 
+     */
+    private static class PassDone extends CountedCompleter<Void> {
+        private ForkBlurBatch mImage; 
+        private int mIndex; 
+
+        PassDone(ForkBlurBatch image, int index) {
+            super(image); 
+            mImage = image; 
+            mIndex = index; 
+        }
+
+        @Override
+        public void compute() {
+            // Never forked; only completed by the root task of its pass. 
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller) {
+            mImage.passDone(mIndex); 
+        }
+    } // end class PassDone 
+
+
+    /**
+     * Hands the blurred pixels to the writer threads, so that the JPEG 
+     * encoding and disk I/O do not hold up a <code>ForkJoinPool</code> 
+     * worker that could be blurring another image. The image completes 
+     * once the write has finished and its buffers are released. 
+     */
+    private void scheduleWrite() {
+        CompletableFuture.runAsync(this::writeImage, writer) 
+                         .whenComplete((written, e) -> {
+                             if (e != null) {
+                                 System.out.println("Error writing output image."); 
+                                 e.printStackTrace(); 
+                             }
+                             releaseBuffers(); 
+                             tryComplete(); 
+                         }); 
+    }
+
+
+    /**
+     * Logs a complete image whose blur threw, and releases its buffers 
+     * and footprint. An image run without a completer, as in 
+     * <code>-watch</code> mode, has no one else to do either, and 
+     * otherwise its footprint would never leave the memory budget. An 
+     * image of a batch then counts as done toward the batch, instead of 
+     * failing it, so that the other images are still blurred and 
+     * written, and the batch completes once they are. 
+     * @param ex the exception
+     * @param caller the task the exception came from
+     * @return false for an image of a batch, so the batch is not failed
+     */
+    @Override
+    public boolean onExceptionalCompletion(Throwable ex, CountedCompleter<?> caller) {
+        if (outputFileName == null) {
+            return true; 
+        }
+        System.out.println("Error blurring: " + outputFileName); 
+        ex.printStackTrace(); 
+        releaseBuffers(); 
+        CountedCompleter<?> batch = getCompleter(); 
+        if (batch == null) {
+            return true; 
+        }
+        batch.tryComplete(); 
+        return false; 
+    }
+
+
+    /**
+     * Returns this complete image's source and destination images, and 
+     * any planes or pyramid levels, to the buffer pool once it has been 
+     * written, and releases its footprint 
+     * from the memory budget. The task must not be used afterwards, 
+     * since other images may then be blurred in its arrays. If the blur 
+     * failed, tasks of it may still be writing to those arrays, so they 
+     * are dropped from the pool instead. 
+     */
+    synchronized void releaseBuffers() {
+        boolean reuse = !isCompletedAbnormally(); 
+        giveBack(mSourceImage, reuse); 
+        giveBack(mDestinationImage, reuse); 
+        if (mPlaneImages != null) {
+            for (BufferedImage plane : mPlaneImages) {
+                giveBack(plane, reuse); 
+            }
+        }
+        if (mPyramid != null) {
+            for (BufferedImage level : mPyramid.getLevels()) {
+                giveBack(level, reuse); 
+            }
+        }
+        mSourceImage = null; 
+        mDestinationImage = null; 
+        mPlaneImages = null; 
+        mPlanes = null; 
+        mPyramid = null; 
+        if (mAdmittedBytes > 0) {
+            admission.release(mAdmittedBytes); 
+            mAdmittedBytes = 0; 
+        }
+    }
+
+
+    /**
+     * Returns an image to the buffer pool, or has the pool forget it. 
+     * @param image the image, or null
+     * @param reuse whether the image may be lent again
+     */
+    private static void giveBack(BufferedImage image, boolean reuse) {
+        if (reuse) {
+            buffers.release(image); 
+        } else if (image != null) {
+            buffers.discard(image); 
+        }
+    }
+
+
+    /**
+     * Leaves the write of this complete image to whoever invoked it, so 
+     * that <code>compute</code> only blurs. 
+     */
+    void deferWrite() {
+        mDeferWrite = true; 
+    }
+
+
+    /**
+     * Writes the blurred pixels of a complete image to its output file. 
+     * Must not be called before the image has been blurred. The image 
+     * written is the one whose array holds the result. If that is the 
+     * source, or the task was built from bare arrays, the array is 
+     * wrapped as a <code>TYPE_INT_RGB</code> image instead, since JPEG 
+     * cannot be written with an alpha channel. Neither copies a pixel. 
+     * The levels of the image's pyramid, if it has one, are written 
+     * right after it by the same thread, and the manifest only records 
+     * the image once all of them have been. 
+     */
+    void writeImage() {
+        BufferedImage dstImage = (mResult == mDestination && mDestinationImage != null) 
+                                 ? mDestinationImage 
+                                 : RasterAccess.wrap(mResult, imageWidth, imageHeight); 
+        File dstFile = new File(sOutputDir, outputFileName); 
+        System.out.println("Beginning write of: " + outputFileName); 
+        long startTime = System.nanoTime(); 
+        try {
+            boolean written = ImageIO.write(dstImage, "jpg", dstFile); 
+            for (int level = 1; written && mPyramid != null && level <= mPyramid.getLevelCount(); level++) {
+                written = ImageIO.write(mPyramid.getLevel(level), "jpg", 
+                                        new File(sOutputDir, MipPyramid.levelName(outputFileName, level))); 
+            }
+            if (!written) {
+                System.out.println("No jpg writer for the blurred image of: " + outputFileName); 
+            } else if (manifest != null) {
+                manifest.written(outputFileName); 
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing output image."); 
+            e.printStackTrace(); 
+        }
+        stats.record(outputFileName, BatchStats.Stage.WRITE, System.nanoTime() - startTime); 
+        System.out.println("Finish write of: " + outputFileName); 
+    }
+
+
+    /**
+     * The horizontal pass of a <code>SEPARABLE</code> blur. Splits its 
+     * band of rows in half until the band holds fewer pixels than the 
+     * threshold, then blurs each row of the band on its own so that no 
+     * window runs from one row into the next. 
+     */
+    private static class RowBand extends CountedCompleter<Void> {
+        private int[] mSource; 
+        private int[] mDestination; 
+        private int mWidth; 
+        private int mFirstRow; 
+        private int mRowCount; 
+        private int mBlurWidth; 
+        private int mThreshold = 0; 
+
+        RowBand(CountedCompleter<?> completer, int[] src, int[] dst, 
+                int width, int firstRow, int rowCount, int blurWidth) {
+            super(completer); 
+            mSource = src; 
+            mDestination = dst; 
+            mWidth = width; 
+            mFirstRow = firstRow; 
+            mRowCount = rowCount; 
+            mBlurWidth = blurWidth; 
+        }
+
+        @Override
+        public void compute() {
+            if (mThreshold == 0) {
+                mThreshold = split.threshold((long) mRowCount * mWidth); 
+            }
+            while (mRowCount > 1 && mRowCount * mWidth >= mThreshold) {
+                int half = mRowCount / 2; 
+                RowBand fork = new RowBand(this, mSource, mDestination, mWidth, mFirstRow + half, 
+                                           mRowCount - half, mBlurWidth); 
+                fork.mThreshold = mThreshold; 
+                addToPendingCount(1); 
+                fork.fork(); 
+                mRowCount = half; 
+            }
+            long startTime = System.nanoTime(); 
+            for (int row = mFirstRow; row < mFirstRow + mRowCount; row++) {
+                blurLine(mSource, mDestination, row * mWidth, 1, mWidth, 0, mWidth, mBlurWidth); 
+            }
+            split.recordLeaf((long) mRowCount * mWidth, System.nanoTime() - startTime); 
+            tryComplete(); 
+        }
+    } // end class RowBand 
+
+
+    /**
+     * The vertical pass of a <code>SEPARABLE</code> blur. Splits its 
+     * band of columns in half until the band holds fewer pixels than 
+     * the threshold, then blurs each column of the band from top to 
+     * bottom. 
+     */
+    private static class ColumnBand extends CountedCompleter<Void> {
+        private int[] mSource; 
+        private int[] mDestination; 
+        private int mWidth; 
+        private int mHeight; 
+        private int mFirstColumn; 
+        private int mColumnCount; 
+        private int mBlurWidth; 
+        private int mThreshold = 0; 
+
+        ColumnBand(CountedCompleter<?> completer, int[] src, int[] dst, int width, int height, 
+                   int firstColumn, int columnCount, int blurWidth) {
+            super(completer); 
+            mSource = src; 
+            mDestination = dst; 
+            mWidth = width; 
+            mHeight = height; 
+            mFirstColumn = firstColumn; 
+            mColumnCount = columnCount; 
+            mBlurWidth = blurWidth; 
+        }
+
+        @Override
+        public void compute() {
+            if (mThreshold == 0) {
+                mThreshold = split.threshold((long) mColumnCount * mHeight); 
+            }
+            while (mColumnCount > 1 && mColumnCount * mHeight >= mThreshold) {
+                int half = mColumnCount / 2; 
+                ColumnBand fork = new ColumnBand(this, mSource, mDestination, mWidth, mHeight, 
+                                                 mFirstColumn + half, mColumnCount - half, mBlurWidth); 
+                fork.mThreshold = mThreshold; 
+                addToPendingCount(1); 
+                fork.fork(); 
+                mColumnCount = half; 
+            }
+            long startTime = System.nanoTime(); 
+            for (int column = mFirstColumn; column < mFirstColumn + mColumnCount; column++) {
+                blurLine(mSource, mDestination, column, mWidth, mHeight, 0, mHeight, mBlurWidth); 
+            }
+            split.recordLeaf((long) mColumnCount * mHeight, System.nanoTime() - startTime); 
+            tryComplete(); 
+        }
+    } // end class ColumnBand 
+
+
+    /**
+     * Work done on one tile of an image: a tile of the vertical pass of 
+     * a <code>TILED</code> blur, or of a convolution. 
+     */
+    interface TileOp {
+        /**
+         * Reads <code>src</code> around a tile, reaching into whatever 
+         * halo it needs, and writes the tile's pixels into <code>dst</code>. 
+         * @param src the pixels to read, in row-major order
+         * @param dst the array to write the tile into
+         * @param firstRow the first row of the tile
+         * @param lastRow the row after the last row of the tile
+         * @param firstColumn the first column of the tile
+         * @param lastColumn the column after the last column of the tile
+         */
+        void apply(int[] src, int[] dst, int firstRow, int lastRow, int firstColumn, int lastColumn); 
+    }
+
+
+    /**
+     * A pass over an image by tiles, such as the vertical pass of a 
+     * <code>TILED</code> blur. Splits its region of the image along 
+     * whole tiles, across its longer side, until the region holds fewer 
+     * pixels than the threshold or is a single tile. The tiles of a 
+     * region are then handed to its <code>TileOp</code> one at a time. 
+     */
+    private static class Tiles extends CountedCompleter<Void> {
+        private int[] mSource; 
+        private int[] mDestination; 
+        private int mFirstRow; 
+        private int mRowCount; 
+        private int mFirstColumn; 
+        private int mColumnCount; 
+        private int mTileRows; 
+        private int mTileColumns; 
+        private TileOp mOp; 
+        private int mThreshold = 0; 
+
+        Tiles(CountedCompleter<?> completer, int[] src, int[] dst, 
+              int firstRow, int rowCount, int firstColumn, int columnCount, 
+              int tileRows, int tileColumns, TileOp op) {
+            super(completer); 
+            mSource = src; 
+            mDestination = dst; 
+            mFirstRow = firstRow; 
+            mRowCount = rowCount; 
+            mFirstColumn = firstColumn; 
+            mColumnCount = columnCount; 
+            mTileRows = tileRows; 
+            mTileColumns = tileColumns; 
+            mOp = op; 
+        }
+
+        @Override
+        public void compute() {
+            if (mThreshold == 0) {
+                mThreshold = split.threshold((long) mRowCount * mColumnCount); 
+            }
+            while ((long) mRowCount * mColumnCount >= mThreshold 
+                    && (mRowCount > mTileRows || mColumnCount > mTileColumns)) {
+                int rowTiles = (mRowCount + mTileRows - 1) / mTileRows; 
+                int columnTiles = (mColumnCount + mTileColumns - 1) / mTileColumns; 
+                Tiles fork; 
+                if (rowTiles >= columnTiles) {
+                    int half = rowTiles / 2 * mTileRows; 
+                    fork = new Tiles(this, mSource, mDestination, 
+                                     mFirstRow + half, mRowCount - half, mFirstColumn, mColumnCount, 
+                                     mTileRows, mTileColumns, mOp); 
+                    mRowCount = half; 
+                } else {
+                    int half = columnTiles / 2 * mTileColumns; 
+                    fork = new Tiles(this, mSource, mDestination, 
+                                     mFirstRow, mRowCount, mFirstColumn + half, mColumnCount - half, 
+                                     mTileRows, mTileColumns, mOp); 
+                    mColumnCount = half; 
+                }
+                fork.mThreshold = mThreshold; 
+                addToPendingCount(1); 
+                fork.fork(); 
+            }
+            long startTime = System.nanoTime(); 
+            int lastRow = mFirstRow + mRowCount; 
+            int lastColumn = mFirstColumn + mColumnCount; 
+            for (int row = mFirstRow; row < lastRow; row += mTileRows) {
+                int tileEnd = Math.min(row + mTileRows, lastRow); 
+                for (int column = mFirstColumn; column < lastColumn; column += mTileColumns) {
+                    mOp.apply(mSource, mDestination, row, tileEnd, 
+                              column, Math.min(column + mTileColumns, lastColumn)); 
+                }
+            }
+            split.recordLeaf((long) mRowCount * mColumnCount, System.nanoTime() - startTime); 
+            tryComplete(); 
+        }
+    } // end class Tiles 
+
+
+    /**
+     * Reads the size of the L2 cache from Linux's sysfs, where it is 
+     * available. 
+     * @return the size of the L2 cache in bytes, or 256 KB if unknown
+     */
+    private static long detectL2Bytes() {
+        File[] caches = new File("/sys/devices/system/cpu/cpu0/cache").listFiles(); 
+        if (caches != null) {
+            for (File cache : caches) {
+                try {
+                    String level = new String(Files.readAllBytes(new File(cache, "level").toPath())).trim(); 
+                    String size = new String(Files.readAllBytes(new File(cache, "size").toPath())).trim(); 
+                    if (level.equals("2") && size.endsWith("K")) {
+                        return Long.parseLong(size.substring(0, size.length() - 1)) << 10; 
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    // Not a cache description this can read; try the next. 
+                }
+            }
+        }
+        return 256L << 10; 
+    }
+
+
+    /**
+     * Replaces the split policy, for callers that blur images without 
+     * going through <code>main</code>. 
+     * @param policy the policy every task will split by
+     */
+    static void setSplitPolicy(SplitPolicy policy) {
+        split = policy; 
+    }
+
+
+    /**
+     * The task that hands the images to the decoder threads before they 
+     * are blurred. This task also waits for all others to complete so 
+     * that all threads can execute to completion in the 
+     * <code>ForkJoinPool</code>. 
+     */
+    private static class IOThread extends CountedCompleter<Void> {
+        /**
+         * Loads the images for blurring. This task completes once every 
+         * image it started has been blurred and written, so the batch 
+         * is finished when <code>invoke</code> returns. 
+         */
+        @Override
+        public void compute() {
+            createAndStartTasks(listImages()); 
+
+            // Counts this task's own part; the last image to finish completes the batch. 
+            tryComplete(); 
+        }
+
+        
+        /**
+         * Hands each image file to the decoder threads, counting it as 
+         * pending on this task. A decoder thread performs the input I/O 
+         * for the image, creates a <code>CountedCompleter</code> for it, 
+         * and submits that to the pool as soon as the image is decoded, 
+         * so images are decoded in parallel and in no particular order. 
+         * Each image is read only once the memory budget admits it, so 
+         * the decoders wait while earlier images are still being blurred. 
+         * @param srcFiles an array of image file objects to blur
+         */
+        private void createAndStartTasks(File[] srcFiles) {
+            for (File srcFile : srcFiles) {
+                addToPendingCount(1); 
+                decoder.execute(() -> {
+                    try {
+                        ForkBlurBatch fb = readImage(srcFile, this); 
+                        if (fb != null) {
+                            System.out.println("Invoking FJPool for: " + fb.outputFileName); 
+                            // The image's task completes this one once it is written. 
+                            pool.execute(fb); 
+                            return; 
+                        }
+                    } catch (RuntimeException | Error e) {
+                        // Such as running out of memory decoding; the count must still be released. 
+                        System.out.println("Error opening source image."); 
+                        e.printStackTrace(); 
+                    }
+                    tryComplete(); 
+                }); 
+            }
+        }
+    } // end class IOThread 
+
+
+    /**
+     * Gets the array of files for processing from the input directory, 
+     * "images" unless another was given, largest first unless the 
+     * listed order was asked for. Blurred copies written by earlier 
+     * runs are not blurred again, nor are images the manifest shows are 
+     * already blurred. 
+     * @return the jpg files found in the input directory that need blurring
+     */
+    static File[] listImages() {
+        File srcDir = new File(sInputDir); 
+        File[] srcFiles = srcDir.listFiles((d, s) -> isImage(s)); 
+        if (srcFiles != null && manifest != null) {
+            File[] outputFiles = new File[srcFiles.length]; 
+            for (int i = 0; i < srcFiles.length; i++) {
+                outputFiles[i] = outputFile(srcFiles[i]); 
+            }
+            srcFiles = manifest.select(srcFiles, outputFiles); 
+        }
+        return (srcFiles == null || sOrder == Order.LISTED) ? srcFiles : largestFirst(srcFiles); 
+    }
+
+
+    /**
+     * Tells whether a file in the input directory is an image to blur. 
+     * @param name the name of the file
+     * @return true for a jpg file that is not a blurred copy
+     */
+    static boolean isImage(String name) {
+        return name.toLowerCase().endsWith(".jpg") && !name.startsWith("blurred-"); 
+    }
+
+
+    /**
+     * Names the blurred copy of an image file. 
+     * @param srcFile the image file
+     * @return the name of the file for its blurred copy 
+     */
+    static String outputName(File srcFile) {
+        return "blurred-" + srcFile.getName(); 
+    }
+
+
+    /**
+     * Locates the blurred copy of an image file in the output directory. 
+     * @param srcFile the image file
+     * @return the file for its blurred copy 
+     */
+    static File outputFile(File srcFile) {
+        return new File(sOutputDir, outputName(srcFile)); 
+    }
+
+
+    /**
+     * Describes every setting the blurred images depend on, so that the 
+     * manifest can tell when an image must be blurred again. 
+     * @return the settings, as flags and values
+     */
+    static String settings() {
+        String blur; 
+        if (sFilter != null) {
+            blur = "filter=" + sFilter; 
+        } else if (sRadiusMapName != null) {
+            blur = "radius-map=" + sRadiusMapName + " max-radius=" + sMaxRadius; 
+        } else if (sSigma > 0) {
+            blur = "sigma=" + sSigma; 
+        } else {
+            blur = "width=" + sBlurWidth; 
+        }
+        String pyramid = (sPyramidLevels > 0) ? " pyramid=" + sPyramidLevels : ""; 
+        return "kernel=" + sKernel + " mode=" + sMode + " " + blur + pyramid; 
+    }
+
+
+    /**
+     * Orders image files by the number of pixels in each, largest first. 
+     * When the largest image comes last, the batch ends with it split 
+     * among workers that have nothing else left to do; started first, 
+     * it is blurred while the smaller images fill in around it. The sizes 
+     * are read from the images' headers, without decoding them. 
+     * @param srcFiles the image files to order
+     * @return the same files, largest first
+     */
+    static File[] largestFirst(File[] srcFiles) {
+        Map<File, Long> pixels = new HashMap<>(); 
+        for (File srcFile : srcFiles) {
+            pixels.put(srcFile, headerPixels(srcFile)); 
+        }
+        File[] ordered = srcFiles.clone(); 
+        Arrays.sort(ordered, Comparator.comparing(pixels::get, Comparator.reverseOrder())); 
+        return ordered; 
+    }
+
+
+    /**
+     * Reads the number of pixels in an image from its header. 
+     * @param srcFile the image file
+     * @return the number of pixels, or 0 if the header cannot be read, 
+     *         which the read of the image itself will report
+     */
+    static long headerPixels(File srcFile) {
+        int[] size = headerSize(srcFile); 
+        return (size == null) ? 0 : (long) size[0] * size[1]; 
+    }
+
+
+    /**
+     * Reads the width and height of an image from its header. 
+     * @param srcFile the image file
+     * @return the width and height, or null if the header cannot be read
+     */
+    static int[] headerSize(File srcFile) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(srcFile)) {
+            ImageReader reader = (in == null) ? null : readerFor(in); 
+            if (reader == null) {
+                return null; 
+            }
+            try {
+                reader.setInput(in, true, true); 
+                return new int[] { reader.getWidth(0), reader.getHeight(0) }; 
+            } finally {
+                reader.reset(); 
+            }
+        } catch (IOException | RuntimeException e) {
+            return null; 
+        }
+    }
+
+
+    /**
+     * Performs the input I/O for an image file and creates the 
+     * <code>CountedCompleter</code> that blurs it. The image's size is 
+     * read from its header first, and decoding waits until the memory 
+     * budget admits an image of that size. An image too large for the 
+     * whole budget, or any image if <code>-strip-rows</code> was given, 
+     * is instead blurred and written by strips before this returns. 
+     * @param srcFile the image file to blur
+     * @param batch the task to notify once the image is written, or null
+     * @return the task for the complete image, or null if it could not 
+     *         be read or has already been streamed
+     */
+    static ForkBlurBatch readImage(File srcFile, CountedCompleter<?> batch) {
+        ImageReader reader = null; 
+        long footprint = 0; 
+        try (ImageInputStream in = ImageIO.createImageInputStream(srcFile)) {
+            reader = (in == null) ? null : readerFor(in); 
+            if (reader == null) {
+                System.out.println("No reader for source image: " + srcFile.getName()); 
+                return null; 
+            }
+            reader.setInput(in, true, true); 
+            footprint = MemoryBudget.footprint(reader.getWidth(0), reader.getHeight(0)); 
+            if (sRadiusMap != null) {
+                // The three summed-area tables. 
+                footprint += 12L * (reader.getWidth(0) + 1) * (reader.getHeight(0) + 1); 
+            } else if (sLayout == Layout.PLANAR && sFilter == null) {
+                // Six byte planes in place of the packed source. 
+                footprint += 2L * reader.getWidth(0) * reader.getHeight(0); 
+            }
+            footprint += MipPyramid.bytes(reader.getWidth(0), reader.getHeight(0), sPyramidLevels); 
+            if (sRadiusMap == null && (sStripRows > 0 || footprint > admission.getBudgetBytes())) {
+                boolean written = streamImage(reader, footprint, outputName(srcFile)); 
+                footprint = 0; 
+                // Without its pyramid, the image must be blurred again by a run that can hold it. 
+                if (written && manifest != null && sPyramidLevels == 0) {
+                    manifest.written(outputName(srcFile)); 
+                }
+                return null; 
+            }
+            long waitTime = System.nanoTime(); 
+            admission.admit(footprint); 
+            long readTime = System.nanoTime(); 
+            ForkBlurBatch fb = createTask(decode(reader, null), outputName(srcFile), batch); 
+            if (sPyramidLevels > 0) {
+                BufferedImage[] levels = new BufferedImage[sPyramidLevels]; 
+                for (int level = 1; level <= levels.length; level++) {
+                    levels[level - 1] = buffers.borrow(MipPyramid.levelSize(fb.imageWidth, level), 
+                                                       MipPyramid.levelSize(fb.imageHeight, level), 
+                                                       BufferedImage.TYPE_INT_RGB); 
+                }
+                fb.mPyramid = new MipPyramid(levels, fb.imageWidth, fb.imageHeight); 
+            }
+            fb.mAdmittedBytes = footprint; 
+            footprint = 0; 
+            fb.mReadyNanos = System.nanoTime(); 
+            stats.pixels(fb.outputFileName, (long) fb.imageWidth * fb.imageHeight); 
+            stats.record(fb.outputFileName, BatchStats.Stage.WAIT, readTime - waitTime); 
+            stats.record(fb.outputFileName, BatchStats.Stage.READ, fb.mReadyNanos - readTime); 
+            return fb; 
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error opening source image."); 
+            e.printStackTrace(); 
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted waiting to read: " + srcFile.getName()); 
+            Thread.currentThread().interrupt(); 
+        } finally {
+            if (footprint > 0) {
+                admission.release(footprint); 
+            }
+            if (reader != null) {
+                // Kept for this thread's next image, but not its stream. 
+                reader.reset(); 
+            }
+        }
+        return null; 
+    }
+
+
+    /**
+     * Returns the reader this thread last used, if it can decode the 
+     * given stream, or else a new reader for it, which the thread then 
+     * keeps instead. Readers are not thread-safe, so each thread has its 
+     * own, and reusing it saves setting up a decoder for every image. 
+     * @param in the stream of the image to read
+     * @return a reader for the stream, or null if there is none
+     * @throws IOException if the stream cannot be read
+     */
+    private static ImageReader readerFor(ImageInputStream in) throws IOException {
+        ImageReader reader = sReaders.get(); 
+        if (reader != null && reader.getOriginatingProvider().canDecodeInput(in)) {
+            return reader; 
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in); 
+        if (!readers.hasNext()) {
+            return null; 
+        }
+        if (reader != null) {
+            reader.dispose(); 
+        }
+        reader = readers.next(); 
+        sReaders.set(reader); 
+        return reader; 
+    }
+
+
+    /**
+     * Blurs and writes an image by strips, each sized so that it takes 
+     * about a quarter of the memory budget unless 
+     * <code>-strip-rows</code> was given. Only one strip's footprint is 
+     * admitted, for the whole time the image streams. 
+     * @param reader a reader whose input has been set
+     * @param footprint the footprint of the whole image
+     * @param outputName the name of the file for the blurred image 
+     * @return whether the image was written
+     * @throws IOException if the image cannot be read or written
+     * @throws InterruptedException if interrupted waiting for the budget
+     */
+    private static boolean streamImage(ImageReader reader, long footprint, String outputName) 
+            throws IOException, InterruptedException {
+        int w = reader.getWidth(0); 
+        int h = reader.getHeight(0); 
+        long rowBytes = Math.max(footprint / h, 1); 
+        int halo = haloRows(w); 
+        int rows = (sStripRows > 0) ? sStripRows 
+                                    : (int) Math.max(admission.getBudgetBytes() / 4 / rowBytes - 2 * halo, 16); 
+        long stripBytes = rowBytes * Math.min(rows + 2L * halo, h); 
+        long waitTime = System.nanoTime(); 
+        admission.admit(stripBytes); 
+        stats.pixels(outputName, (long) w * h); 
+        stats.record(outputName, BatchStats.Stage.WAIT, System.nanoTime() - waitTime); 
+        try {
+            System.out.println("Streaming " + outputName + " in strips of " + rows + " rows with " + 
+                               halo + " halo rows"); 
+            if (sPyramidLevels > 0) {
+                System.out.println("No pyramid is written for the streamed image: " + outputName); 
+            }
+            return new StreamingBlur(reader, pool, stats, rows, halo, outputName).run(); 
+        } finally {
+            admission.release(stripBytes); 
+        }
+    }
+
+
+    /**
+     * Returns how many rows above and below a row the blur reads, through 
+     * all of its passes, for an image of the given width. 
+     * @param width the width of the image
+     * @return the number of rows the blur reaches on either side
+     */
+    static int haloRows(int width) {
+        if (sFilter != null) {
+            return sFilter.getHeight() / 2; 
+        }
+        int reach = 0; 
+        for (int box : (sSigma > 0) ? gaussianBoxes(sSigma, 3) : new int[] { sBlurWidth }) {
+            reach += (box - 1) / 2; 
+        }
+        // A flat blur reaches along the flat array, into the rows either side. 
+        return (sMode == Mode.FLAT) ? (reach + width - 1) / width : reach; 
+    }
+
+
+    /**
+     * Decodes the first image from a reader, or a region of it. When the 
+     * reader's default image type is a standard one, the image is decoded 
+     * into a pooled image of that type, which the caller should release 
+     * once it is unpacked. 
+     * @param reader a reader whose input has been set
+     * @param region the region of the image to decode, or null for all of it
+     * @return the decoded image
+     * @throws IOException if the image cannot be decoded
+     */
+    static BufferedImage decode(ImageReader reader, Rectangle region) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam(); 
+        BufferedImage target = null; 
+        int w = reader.getWidth(0); 
+        int h = reader.getHeight(0); 
+        if (region != null) {
+            param.setSourceRegion(region); 
+            w = region.width; 
+            h = region.height; 
+        }
+        int type = reader.getImageTypes(0).next().getBufferedImageType(); 
+        if (type != BufferedImage.TYPE_CUSTOM) {
+            target = buffers.borrow(w, h, type); 
+            param.setDestination(target); 
+        }
+        try {
+            return reader.read(0, param); 
+        } catch (IOException | RuntimeException e) {
+            buffers.release(target); 
+            throw e; 
+        }
+    }
+
+
+    /**
+     * Creates the <code>CountedCompleter</code> for a decoded image. 
+     * Unless the decoded image is already packed RGB, it is unpacked 
+     * into a pooled one and returned to the pool. For a planar blur it 
+     * is split into pooled planes instead. 
+     * @param decoded the decoded image
+     * @param outputName the name of the file for the blurred image 
+     * @param batch the task to notify once the image is written, or null
+     * @return the task for the complete image
+     */
+    static ForkBlurBatch createTask(BufferedImage decoded, String outputName, 
+                                    CountedCompleter<?> batch) {
+        int w = decoded.getWidth(); 
+        int h = decoded.getHeight(); 
+        if (sLayout == Layout.PLANAR && sFilter == null && sRadiusMap == null) {
+            BufferedImage[] planes = new BufferedImage[6]; 
+            for (int i = 0; i < planes.length; i++) {
+                planes[i] = buffers.borrow(w, h, BufferedImage.TYPE_BYTE_GRAY); 
+            }
+            RasterAccess.unpackPlanes(decoded, RasterAccess.planeBytes(planes[0]), 
+                                      RasterAccess.planeBytes(planes[1]), RasterAccess.planeBytes(planes[2])); 
+            buffers.release(decoded); 
+            return new ForkBlurBatch(batch, planes, buffers.borrow(w, h, BufferedImage.TYPE_INT_RGB), 
+                                     outputName); 
+        }
+        BufferedImage srcImage = decoded; 
+        if (RasterAccess.packedPixels(decoded) == null) {
+            srcImage = buffers.borrow(w, h, BufferedImage.TYPE_INT_RGB); 
+            RasterAccess.unpack(decoded, RasterAccess.packedPixels(srcImage)); 
+            buffers.release(decoded); 
+        }
+        BufferedImage dstImage = buffers.borrow(w, h, BufferedImage.TYPE_INT_RGB); 
+        return new ForkBlurBatch(batch, srcImage, dstImage, outputName); 
+    }
+
+
+    /**
+     * Returns the array holding the blurred pixels of a complete image. 
+     * @return the result, or null before the image has been blurred
+     */
+    int[] getResult() {
+        return mResult; 
+    }
+
+
+    /**
+     * Returns the name of the file this complete image is written to. 
+     * @return the output file name, or null for a recursive fork
+     */
+    String getOutputFileName() {
+        return outputFileName; 
+    }
+
+    
+    /**
+     * Reads the optional command-line flags into the static settings 
+     * shared by every task. Prints usage and exits if a flag is bad. 
+     * @param args the command-line arguments given to <code>main</code>
+     */
+    private static void parseArgs(String[] args) {
+        try {
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1]; 
+                switch (args[i]) {
+                    case "-kernel": 
+                        sKernel = Kernel.valueOf(value.toUpperCase().replace('-', '_')); 
+                        break; 
+                    case "-mode": 
+                        sMode = Mode.valueOf(value.toUpperCase()); 
+                        break; 
+                    case "-layout": 
+                        sLayout = Layout.valueOf(value.toUpperCase()); 
+                        break; 
+                    case "-order": 
+                        sOrder = Order.valueOf(value.toUpperCase()); 
+                        break; 
+                    case "-pack-pixels": 
+                        sPackPixels = Long.parseLong(value); 
+                        break; 
+                    case "-pipeline": 
+                        sPipelineThreads = Integer.parseInt(value); 
+                        break; 
+                    case "-writers": 
+                        sWriterThreads = Integer.parseInt(value); 
+                        break; 
+                    case "-decoders": 
+                        sDecoderThreads = Integer.parseInt(value); 
+                        break; 
+                    case "-pool-mb": 
+                        sPoolBudget = Long.parseLong(value) << 20; 
+                        break; 
+                    case "-budget-mb": 
+                        sFlightBudget = Long.parseLong(value) << 20; 
+                        break; 
+                    case "-max-in-flight": 
+                        sMaxInFlight = Integer.parseInt(value); 
+                        break; 
+                    case "-width": 
+                        sBlurWidth = Integer.parseInt(value); 
+                        break; 
+                    case "-threshold": 
+                        sThreshold = Integer.parseInt(value); 
+                        break; 
+                    case "-pyramid": 
+                        sPyramidLevels = Integer.parseInt(value); 
+                        break; 
+                    case "-coordinator": 
+                        sCoordinatorPort = Integer.parseInt(value); 
+                        break; 
+                    case "-worker": 
+                        sCoordinatorAddress = value; 
+                        break; 
+                    case "-worker-slots": 
+                        sWorkerSlots = Integer.parseInt(value); 
+                        break; 
+                    case "-shard-pixels": 
+                        sShardPixels = Long.parseLong(value); 
+                        break; 
+                    case "-input": 
+                        sInputDir = value; 
+                        break; 
+                    case "-output": 
+                        sOutputDir = value; 
+                        break; 
+                    case "-watch": 
+                        sWatchMillis = Long.parseLong(value); 
+                        break; 
+                    case "-manifest": 
+                        sManifestName = value; 
+                        break; 
+                    case "-report": 
+                        sReportName = value; 
+                        break; 
+                    case "-sample-ms": 
+                        sSampleMillis = Integer.parseInt(value); 
+                        break; 
+                    case "-strip-rows": 
+                        sStripRows = Integer.parseInt(value); 
+                        break; 
+                    case "-filter": 
+                        sFilter = ConvolutionKernel.named(value); 
+                        break; 
+                    case "-radius-map": 
+                        sRadiusMapName = value; 
+                        break; 
+                    case "-max-radius": 
+                        sMaxRadius = Integer.parseInt(value); 
+                        break; 
+                    case "-sigma": 
+                        sSigma = Double.parseDouble(value); 
+                        break; 
+                    case "-l2-kb": 
+                        sL2Bytes = Long.parseLong(value) << 10; 
+                        break; 
+                    default: 
+                        usage(); 
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            usage(); 
+        }
+        if (args.length % 2 != 0 || sBlurWidth < 1 || sBlurWidth % 2 == 0 
+                || sPipelineThreads < 0 || sWriterThreads < 1 || sDecoderThreads < 1 || sPoolBudget < 0 
+                || sFlightBudget < 0 || sMaxInFlight < 1 || sThreshold < 0 || sStripRows < 0 
+                || sSampleMillis < 1 || sPackPixels < 0 || sL2Bytes < 1 || !(sSigma >= 0) 
+                || sMaxRadius < 0 || sMaxRadius > MAX_SUM_RADIUS || sWatchMillis < 0 
+                || sPyramidLevels < 0 || sPyramidLevels > MAX_PYRAMID_LEVELS 
+                || (sPyramidLevels > 0 && sStripRows > 0) || sWorkerSlots < 1 || sShardPixels < 0 
+                || sCoordinatorPort < 0 || sCoordinatorPort > 65535 
+                || (sCoordinatorAddress != null && !sCoordinatorAddress.matches(".+:\\d+"))) {
+            usage(); 
+        }
+        if (sOutputDir == null) {
+            sOutputDir = sInputDir; 
+        }
+        // A watched directory gets its blurred copies elsewhere, and is never pipelined. 
+        if (sWatchMillis > 0 && (sPipelineThreads > 0 
+                || new File(sOutputDir).getAbsoluteFile().equals(new File(sInputDir).getAbsoluteFile()))) {
+            usage(); 
+        }
+        // A coordinator or a worker only takes part in a distributed batch. 
+        boolean distributed = sCoordinatorPort > 0 || sCoordinatorAddress != null; 
+        if ((sCoordinatorPort > 0 && sCoordinatorAddress != null) 
+                || (distributed && (sWatchMillis > 0 || sPipelineThreads > 0))) {
+            usage(); 
+        }
+    }
+
+
+    /**
+     * Prints the accepted command-line flags and terminates. 
+     */
+    private static void usage() {
+        System.out.println("usage: java ForkBlurBatch [-kernel float|running-sum|fixed-point|vector] " + 
+                           "[-mode flat|separable|tiled] [-layout packed|planar] [-pipeline io-threads] " + 
+                           "[-writers writer-threads] [-decoders decoder-threads] " + 
+                           "[-pool-mb idle-buffer-megabytes] [-budget-mb in-flight-megabytes] " + 
+                           "[-max-in-flight images] [-width odd-window-size] [-sigma gaussian-sigma] " + 
+                           "[-filter sharpen|edge|emboss|gaussian|weights[/divisor]] " + 
+                           "[-radius-map gray-image|radial] [-max-radius pixels] [-order largest|listed] " + 
+                           "[-pack-pixels pixels] [-threshold leaf-pixels] [-strip-rows rows] " + 
+                           "[-manifest file|none] [-report file.json|file.csv] [-sample-ms period] " + 
+                           "[-l2-kb cache-kilobytes] [-input dir] [-output dir] [-watch quiet-ms] " + 
+                           "[-pyramid levels] [-coordinator port [-shard-pixels pixels]] " + 
+                           "[-worker host:port [-worker-slots jobs]]"); 
+        System.exit(1); 
+    }
+
+
+    /**
+     * Iterates through subdirectory of current directory and
+     * blurs each image file found there. 
+     */ 
+    public static void main(String[] args) throws Exception {
+        parseArgs(args); 
+        if (sKernel == Kernel.VECTOR) {
+            loadVectorKernel(); 
+        }
+        if (sFilter != null) {
+            System.out.println("Applying the filter " + sFilter + "."); 
+        } else if (sRadiusMapName != null) {
+            try {
+                sRadiusMap = RadiusMap.load(sRadiusMapName, sMaxRadius); 
+            } catch (IOException e) {
+                System.out.println("Error reading radius map."); 
+                e.printStackTrace(); 
+                System.exit(1); 
+            }
+            System.out.println("Blurring with radii up to " + sMaxRadius + " from the map " + 
+                               sRadiusMapName + "."); 
+        } else if (sSigma > 0) {
+            System.out.println("Approximating a Gaussian of sigma " + sSigma + " with boxes of width " + 
+                               Arrays.toString(gaussianBoxes(sSigma, 3)) + "."); 
+        }
+        split = (sThreshold > 0) ? new SplitPolicy(pool.getParallelism(), 1.0, sThreshold) 
+                                 : SplitPolicy.calibrate(pool.getParallelism(), sBlurWidth); 
+        split.setPackPixels(sPackPixels); 
+        if (sCoordinatorAddress != null) {
+            // A worker only keeps its blurred copies until they are sent back. 
+            sOutputDir = Files.createTempDirectory("blur-worker").toString(); 
+            sManifestName = "none"; 
+        }
+        new File(sOutputDir).mkdirs(); 
+        if (sManifestName == null) {
+            sManifestName = new File(sOutputDir, "blur-manifest.txt").getPath(); 
+        }
+        if (!sManifestName.equals("none")) {
+            try {
+                manifest = BlurManifest.load(new File(sManifestName), settings()); 
+            } catch (IOException e) {
+                System.out.println("Error reading manifest."); 
+                e.printStackTrace(); 
+                System.exit(1); 
+            }
+        }
+        writer = Executors.newFixedThreadPool(sWriterThreads); 
+        decoder = Executors.newFixedThreadPool(sDecoderThreads); 
+        buffers = new ImageBufferPool(sPoolBudget); 
+        admission = new MemoryBudget(sFlightBudget, sMaxInFlight); 
+        if (sWatchMillis > 0) {
+            watch(); 
+            return; 
+        }
+        long startTime = System.currentTimeMillis(); 
+        stats.startSampling(pool, sSampleMillis); 
+        // The executors' threads would otherwise keep the JVM alive after a failed batch. 
+        try {
+            if (sCoordinatorAddress != null) {
+                int colon = sCoordinatorAddress.lastIndexOf(':'); 
+                BlurWorker worker = new BlurWorker(sCoordinatorAddress.substring(0, colon), 
+                                                   Integer.parseInt(sCoordinatorAddress.substring(colon + 1)), 
+                                                   sWorkerSlots, pool, stats, new File(sOutputDir)); 
+                worker.run(); 
+            } else if (sCoordinatorPort > 0) {
+                BlurCoordinator coordinator = new BlurCoordinator(sCoordinatorPort, listImages(), sShardPixels, 
+                                                                  new File(sOutputDir), manifest, stats, buffers, 
+                                                                  writer); 
+                coordinator.run(); 
+                coordinator.printWorkerStats(); 
+            } else if (sPipelineThreads > 0) {
+                BlurPipeline pipeline = new BlurPipeline(pool, sPipelineThreads, sPipelineThreads); 
+                pipeline.run(listImages()); 
+                pipeline.printStageTimes(); 
+            } else {
+                // Returns once the batch completes, when every image has been written. 
+                pool.invoke(new ForkBlurBatch.IOThread()); 
+            }
+        } finally {
+            stats.stopSampling(); 
+            pool.shutdown(); 
+            writer.shutdown(); 
+            decoder.shutdown(); 
+        }
+
+        System.out.println("Blurring all images with the " + sKernel + " kernel took " + 
+                           (System.currentTimeMillis() - startTime) + " milliseconds."); 
+        printResults(); 
+    }
+
+
+    /**
+     * Prints the statistics of the run, writes its report if one was 
+     * asked for, and saves the manifest. 
+     */
+    private static void printResults() {
+        buffers.printStats(); 
+        admission.printPeaks(); 
+        split.printStats(); 
+        stats.printSummary(); 
+        if (sReportName != null) {
+            try {
+                stats.writeReport(new File(sReportName)); 
+            } catch (IOException e) {
+                System.out.println("Error writing report."); 
+                e.printStackTrace(); 
+            }
+        }
+        if (manifest != null) {
+            try {
+                manifest.save(); 
+            } catch (IOException e) {
+                System.out.println("Error writing manifest."); 
+                e.printStackTrace(); 
+            }
+            manifest.printStats(); 
+        }
+    }
+
+
+    /**
+     * Blurs images as they are dropped into the input directory, until 
+     * the program is stopped. The pool is warmed up first, so that the 
+     * first image dropped is blurred by compiled code, and is then kept 
+     * for every image that follows. An image is handed to the decoder 
+     * threads once it has gone unchanged for the quiet period, and from 
+     * there submitted to the pool as in a batch. Stopping the program 
+     * prints the statistics of every image blurred and saves the 
+     * manifest; an image whose blurred copy was not yet written is 
+     * blurred again the next time the directory is watched. The pool is 
+     * only sampled if a report was asked for, since the samples are kept 
+     * for as long as the program runs. 
+     * @throws IOException if the input directory cannot be watched
+     * @throws InterruptedException if interrupted while watching
+     */
+    private static void watch() throws IOException, InterruptedException {
+        warmUp(); 
+        if (sReportName != null) {
+            stats.startSampling(pool, sSampleMillis); 
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stats.stopSampling(); 
+            printResults(); 
+        })); 
+        try (DirectoryWatcher watcher = new DirectoryWatcher(new File(sInputDir), sWatchMillis, 
+                                                             ForkBlurBatch::isImage)) {
+            System.out.println("Watching " + sInputDir + " for images to blur into " + sOutputDir + "."); 
+            while (true) {
+                for (File srcFile : watcher.poll()) {
+                    decoder.execute(() -> {
+                        if (manifest != null && manifest.select(new File[] {srcFile}, 
+                                                                new File[] {outputFile(srcFile)}).length == 0) {
+                            System.out.println("Already blurred: " + srcFile.getName()); 
+                            return; 
+                        }
+                        ForkBlurBatch fb = readImage(srcFile, null); 
+                        if (fb != null) {
+                            System.out.println("Invoking FJPool for: " + fb.outputFileName); 
+                            pool.execute(fb); 
+                        }
+                    }); 
+                }
+                if (manifest != null) {
+                    try {
+                        manifest.saveIfChanged(); 
+                    } catch (IOException e) {
+                        System.out.println("Error writing manifest."); 
+                        e.printStackTrace(); 
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Blurs a synthetic image on the pool several times with the 
+     * current settings, so that the pool's workers are started, the 
+     * split policy has adjusted, and the blur has been compiled before 
+     * the first dropped image arrives. The timings it leaves are thrown 
+     * away. 
+     */
+    private static void warmUp() {
+        long startTime = System.currentTimeMillis(); 
+        int w = 1024; 
+        int h = 768; 
+        int[] pixels = TileBenchmark.syntheticImage(w, h); 
+        for (int i = 0; i < 10; i++) {
+            BufferedImage copy = buffers.borrow(w, h, BufferedImage.TYPE_INT_RGB); 
+            System.arraycopy(pixels, 0, RasterAccess.packedPixels(copy), 0, pixels.length); 
+            ForkBlurBatch fb = createTask(copy, "warm-up", null); 
+            fb.deferWrite(); 
+            pool.invoke(fb); 
+            fb.releaseBuffers(); 
+        }
+        stats = new BatchStats(); 
+        System.out.println("Warmed up the pool in " + (System.currentTimeMillis() - startTime) + 
+                           " milliseconds."); 
     }
 }
@@ -0,0 +1,130 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pool of images, and so of the pixel arrays behind them, keyed by
+ * size and type. A batch of same-sized images can then reuse the same
+ * few buffers instead of allocating new ones for every image. Images
+ * are borrowed when an image is read and released once its blurred
+ * copy has been written. Idle images are kept only while their total
+ * size stays within a memory budget; beyond it, idle images of other
+ * sizes are dropped first, and then the image being released.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class ImageBufferPool {
+    private long budgetBytes;
+    private long idleBytes = 0;
+    private Map<String, ArrayDeque<BufferedImage>> idle = new HashMap<>();
+    private Set<BufferedImage> lent = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long reused = 0;
+    private long allocated = 0;
+
+
+    /**
+     * Creates an empty pool.
+     * @param budgetBytes the most memory idle images may hold, in bytes
+     */
+    public ImageBufferPool(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+
+    /**
+     * Lends an image of the given size and type, reusing an idle one if
+     * there is one. Its pixels are whatever the last borrower left.
+     * @param w the width of the image
+     * @param h the height of the image
+     * @param type a <code>BufferedImage</code> type other than <code>TYPE_CUSTOM</code>
+     * @return an image to be passed back to <code>release</code>
+     */
+    public synchronized BufferedImage borrow(int w, int h, int type) {
+        ArrayDeque<BufferedImage> images = idle.get(key(w, h, type));
+        BufferedImage image = (images == null) ? null : images.poll();
+        if (image != null) {
+            idleBytes -= sizeOf(image);
+            reused++;
+        } else {
+            image = new BufferedImage(w, h, type);
+            allocated++;
+        }
+        lent.add(image);
+        return image;
+    }
+
+
+    /**
+     * Takes back an image lent by this pool. Images the pool did not lend
+     * are ignored, so any image may safely be passed in.
+     * @param image the image to take back
+     */
+    public synchronized void release(BufferedImage image) {
+        if (image == null || !lent.remove(image)) {
+            return;
+        }
+        long size = sizeOf(image);
+        String key = key(image.getWidth(), image.getHeight(), image.getType());
+        // Make room by dropping idle images of other sizes first.
+        Iterator<Map.Entry<String, ArrayDeque<BufferedImage>>> entries = idle.entrySet().iterator();
+        while (idleBytes + size > budgetBytes && entries.hasNext()) {
+            Map.Entry<String, ArrayDeque<BufferedImage>> entry = entries.next();
+            if (entry.getKey().equals(key)) {
+                continue;
+            }
+            for (BufferedImage dropped : entry.getValue()) {
+                idleBytes -= sizeOf(dropped);
+            }
+            entries.remove();
+        }
+        if (idleBytes + size <= budgetBytes) {
+            idle.computeIfAbsent(key, k -> new ArrayDeque<>()).push(image);
+            idleBytes += size;
+        }
+    }
+
+
+    /**
+     * Forgets an image lent by this pool without taking it back, so that
+     * it is never lent again. Used for an image that a task may still be
+     * writing to.
+     * @param image the image to forget
+     */
+    public synchronized void discard(BufferedImage image) {
+        lent.remove(image);
+    }
+
+
+    /**
+     * Prints how often borrowed images were reused and how much memory
+     * the idle images hold.
+     */
+    public synchronized void printStats() {
+        System.out.println("Buffer pool reused " + reused + " of " + (reused + allocated) +
+                           " images and holds " + (idleBytes >> 20) + " of " +
+                           (budgetBytes >> 20) + " MB.");
+    }
+
+
+    private static String key(int w, int h, int type) {
+        return w + "x" + h + ":" + type;
+    }
+
+
+    /**
+     * Returns the number of bytes in the array behind an image.
+     * @param image a standard <code>BufferedImage</code>
+     * @return the size of its pixel data in bytes
+     */
+    static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks()
+               * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,139 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Admission control for the images being blurred. Before an image is
+ * decoded, the memory it will hold while in flight is estimated from
+ * its header and admitted against a byte budget and a limit on the
+ * number of images in flight. If either would be exceeded, the reader
+ * waits until earlier images have been written and released. An image
+ * larger than the whole budget is streamed instead, and only its strip
+ * is admitted, except one blurred from a radius map, which is never
+ * streamed. Such an image is admitted once nothing else is in flight,
+ * so it cannot wait forever.
+ *
+ * Waits go through <code>ForkJoinPool.managedBlock</code>, so a reader
+ * running as a <code>ForkJoinPool</code> task lets the pool start a
+ * spare worker instead of starving the blurs it is waiting on.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class MemoryBudget {
+    // A decode target of at most four bytes per pixel, plus the packed
+    // source and destination of four bytes per pixel each.
+    private static final long BYTES_PER_PIXEL = 12;
+
+    private long budgetBytes;
+    private int maxInFlight;
+    private long inFlightBytes = 0;
+    private int inFlight = 0;
+    private long peakBytes = 0;
+    private int peakInFlight = 0;
+
+
+    /**
+     * Creates a budget with nothing in flight.
+     * @param budgetBytes the most memory images in flight may hold, in bytes
+     * @param maxInFlight the most images that may be in flight at once
+     */
+    public MemoryBudget(long budgetBytes, int maxInFlight) {
+        this.budgetBytes = budgetBytes;
+        this.maxInFlight = maxInFlight;
+    }
+
+
+    /**
+     * Estimates the memory an image holds from being decoded until its
+     * blurred copy has been written.
+     * @param w the width of the image
+     * @param h the height of the image
+     * @return the estimated footprint in bytes
+     */
+    public static long footprint(int w, int h) {
+        return BYTES_PER_PIXEL * w * h;
+    }
+
+
+    /**
+     * Waits until an image of the given footprint fits in the budget,
+     * then counts it as in flight.
+     * @param bytes the image's footprint
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void admit(long bytes) throws InterruptedException {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean admitted = false;
+
+            @Override
+            public boolean block() throws InterruptedException {
+                synchronized (MemoryBudget.this) {
+                    while (!admitted) {
+                        admitted = tryAdmit(bytes);
+                        if (!admitted) {
+                            MemoryBudget.this.wait();
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return admitted || (admitted = tryAdmit(bytes));
+            }
+        });
+    }
+
+
+    /**
+     * Counts an image as in flight if it fits.
+     * @param bytes the image's footprint
+     * @return true if the image was admitted
+     */
+    private synchronized boolean tryAdmit(long bytes) {
+        if (inFlight > 0 && (inFlightBytes + bytes > budgetBytes || inFlight >= maxInFlight)) {
+            return false;
+        }
+        inFlight++;
+        inFlightBytes += bytes;
+        peakInFlight = Math.max(peakInFlight, inFlight);
+        peakBytes = Math.max(peakBytes, inFlightBytes);
+        return true;
+    }
+
+
+    /**
+     * Stops counting an admitted image, waking any reader it was
+     * holding back.
+     * @param bytes the footprint the image was admitted with
+     */
+    public synchronized void release(long bytes) {
+        inFlight--;
+        inFlightBytes -= bytes;
+        notifyAll();
+    }
+
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+
+    /**
+     * Prints the peaks of images and estimated bytes in flight, next to
+     * the peak heap use the JVM measured.
+     */
+    public synchronized void printPeaks() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) {
+                peakHeap += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println("Peak in flight: " + peakInFlight + " images, " +
+                           (peakBytes >> 20) + " of " + (budgetBytes >> 20) +
+                           " MB budgeted; peak heap used " + (peakHeap >> 20) + " MB.");
+    }
+}
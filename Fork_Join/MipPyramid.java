@@ -0,0 +1,177 @@
+import java.awt.image.BufferedImage;
+
+/**
+ * Smaller copies of a blurred image, each half the width and height of
+ * the one before: a mip pyramid of 1/2, 1/4, 1/8 and so on. Each pixel
+ * of a level is the average of the two by two box of pixels under it in
+ * the level above, so the levels are built one from another rather
+ * than each from the full image. A level whose size is odd is rounded
+ * up, and the boxes along its last row or column are cut off at the
+ * edge.
+ *
+ * The levels are built a tile at a time, as the tiles of the blurred
+ * image are finished. A tile whose rows and columns start at multiples
+ * of <code>getAlignment</code>, and end at such a multiple or at the edge
+ * of the image, covers whole boxes on every level, so its part of each
+ * level can be built from its own pixels alone, while they are still in
+ * the cache, and no two tiles write the same pixel of any level.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class MipPyramid {
+    private int width;
+    private int height;
+    private BufferedImage[] levels;
+    private int[][] pixels;                 // The arrays behind the levels.
+
+
+    /**
+     * Creates a pyramid that fills the given images.
+     * @param levels one packed RGB image per level, of the sizes <code>levelSize</code> gives
+     * @param width the width of the full image
+     * @param height the height of the full image
+     */
+    public MipPyramid(BufferedImage[] levels, int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+        this.pixels = new int[levels.length][];
+        for (int i = 0; i < levels.length; i++) {
+            pixels[i] = RasterAccess.packedPixels(levels[i]);
+        }
+    }
+
+
+    /**
+     * Returns the width or height of a level.
+     * @param size the width or height of the full image
+     * @param level the level, 1 for half the size
+     * @return the size divided by two to the level, rounded up
+     */
+    public static int levelSize(int size, int level) {
+        return ((size - 1) >> level) + 1;
+    }
+
+
+    /**
+     * Estimates the memory the levels of an image's pyramid hold.
+     * @param w the width of the full image
+     * @param h the height of the full image
+     * @param levelCount the number of levels
+     * @return the bytes of pixels in all the levels
+     */
+    public static long bytes(int w, int h, int levelCount) {
+        long bytes = 0;
+        for (int level = 1; level <= levelCount; level++) {
+            bytes += 4L * levelSize(w, level) * levelSize(h, level);
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Names the file of one level.
+     * @param outputName the name of the file for the full image
+     * @param level the level, 1 for half the size
+     * @return the name with the level's divisor added before its extension
+     */
+    public static String levelName(String outputName, int level) {
+        int dot = outputName.lastIndexOf('.');
+        String base = (dot < 0) ? outputName : outputName.substring(0, dot);
+        String extension = (dot < 0) ? "" : outputName.substring(dot);
+        return base + "-" + (1 << level) + extension;
+    }
+
+
+    /**
+     * Returns the number of levels.
+     * @return the number of levels, not counting the full image
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+
+    /**
+     * Returns the image of one level.
+     * @param level the level, 1 for half the size
+     * @return the image
+     */
+    public BufferedImage getLevel(int level) {
+        return levels[level - 1];
+    }
+
+
+    /**
+     * Returns the images of every level, half the size first.
+     * @return the images
+     */
+    public BufferedImage[] getLevels() {
+        return levels;
+    }
+
+
+    /**
+     * Returns what the rows and columns of a tile must start at a
+     * multiple of, for <code>downsample</code> to build its part of
+     * every level.
+     * @return two to the number of levels
+     */
+    public int getAlignment() {
+        return 1 << levels.length;
+    }
+
+
+    /**
+     * Builds every level under one aligned tile of the full image.
+     * @param src the full image's pixels, in row-major order
+     * @param firstRow the first row of the tile
+     * @param lastRow the row after the last row of the tile
+     * @param firstColumn the first column of the tile
+     * @param lastColumn the column after the last column of the tile
+     */
+    public void downsample(int[] src, int firstRow, int lastRow, int firstColumn, int lastColumn) {
+        int[] in = src;
+        int inWidth = width;
+        int inHeight = height;
+        for (int level = 1; level <= levels.length; level++) {
+            int[] out = pixels[level - 1];
+            int outWidth = levelSize(width, level);
+            int top = firstRow >> level;
+            int bottom = ((lastRow - 1) >> level) + 1;
+            int left = firstColumn >> level;
+            int right = ((lastColumn - 1) >> level) + 1;
+            for (int y = top; y < bottom; y++) {
+                int upper = 2 * y * inWidth;
+                int lower = Math.min(2 * y + 1, inHeight - 1) * inWidth;
+                for (int x = left; x < right; x++) {
+                    int x0 = 2 * x;
+                    int x1 = Math.min(x0 + 1, inWidth - 1);
+                    out[y * outWidth + x] = average(in[upper + x0], in[upper + x1],
+                                                    in[lower + x0], in[lower + x1]);
+                }
+            }
+            in = out;
+            inWidth = outWidth;
+            inHeight = levelSize(height, level);
+        }
+    }
+
+
+    /**
+     * Averages four packed RGB pixels, channel by channel, rounding to
+     * the nearest value. Along an odd edge a pixel is given twice, so
+     * that the box is averaged over the pixels it really covers.
+     * @param a the top left pixel
+     * @param b the top right pixel
+     * @param c the bottom left pixel
+     * @param d the bottom right pixel
+     * @return the average pixel
+     */
+    private static int average(int a, int b, int c, int d) {
+        int r = ((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff);
+        int g = ((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff);
+        int bl = (a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff);
+        return 0xff000000 | (((r + 2) >> 2) << 16) | (((g + 2) >> 2) << 8) | ((bl + 2) >> 2);
+    }
+}
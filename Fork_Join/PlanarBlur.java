@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ * The blur kernels for images held as planes, one byte per pixel for
+ * each of red, green, and blue, instead of one packed <code>int</code>
+ * per pixel. Each kernel sees a single channel, so it reads a neighbour
+ * with one mask instead of three masks and shifts, and its loops are
+ * plain sums over bytes that the JIT can vectorise. The float kernel is
+ * reproduced exactly; the others all share the output of the running-sum
+ * kernel, so they slide one integer sum and divide it by a reciprocal
+ * multiply, as the fixed-point kernel does.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class PlanarBlur {
+    private static final int MAX_RECIPROCAL_WIDTH = 8223;  // 255 * 8223 * reciprocal fits in a long.
+
+
+    /**
+     * Averages elements <code>from</code> through <code>to - 1</code> of
+     * one line of a plane, whose elements are consecutive. Parameters are
+     * as for <code>ForkBlurBatch.blurLine</code>, but on one channel.
+     */
+    public static void line(byte[] src, byte[] dst, int base, int n, int from, int to, int blurWidth) {
+        int sidePixels = (blurWidth - 1) / 2;
+        int last = n - 1;
+        if (ForkBlurBatch.sKernel == ForkBlurBatch.Kernel.FLOAT) {
+            for (int index = from; index < to; index++) {
+                float total = 0;
+                for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+                    total += (float) (src[base + Math.min(Math.max(mi + index, 0), last)] & 0xff) / blurWidth;
+                }
+                dst[base + index] = (byte) (int) total;
+            }
+            return;
+        }
+        long reciprocal = ((1L << 40) + blurWidth - 1) / blurWidth;
+        int sum = 0;
+        // Prime the sum with the window around the first pixel.
+        for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+            sum += src[base + Math.min(Math.max(from + mi, 0), last)] & 0xff;
+        }
+        // Windows that reach past neither edge slide without clamping.
+        int interiorFrom = Math.min(Math.max(from, sidePixels), to);
+        int interiorTo = Math.max(Math.min(to, last - sidePixels), interiorFrom);
+        int index = from;
+        for (; index < interiorFrom; index++) {
+            dst[base + index] = (byte) average(sum, blurWidth, reciprocal);
+            sum += (src[base + Math.min(index + sidePixels + 1, last)] & 0xff)
+                   - (src[base + Math.max(index - sidePixels, 0)] & 0xff);
+        }
+        if (blurWidth <= MAX_RECIPROCAL_WIDTH) {
+            for (; index < interiorTo; index++) {
+                dst[base + index] = (byte) (sum * reciprocal >>> 40);
+                sum += (src[base + index + sidePixels + 1] & 0xff) - (src[base + index - sidePixels] & 0xff);
+            }
+        }
+        for (; index < to; index++) {
+            dst[base + index] = (byte) average(sum, blurWidth, reciprocal);
+            // Slide the window one pixel along, clamping at the edges.
+            sum += (src[base + Math.min(index + sidePixels + 1, last)] & 0xff)
+                   - (src[base + Math.max(index - sidePixels, 0)] & 0xff);
+        }
+    }
+
+
+    /**
+     * Blurs a tile of a plane vertically, sweeping it a row at a time
+     * with a window sum for each column, as
+     * <code>ForkBlurBatch.blurTile</code> does for packed pixels.
+     * Parameters are as for <code>blurTile</code>, but on one channel.
+     */
+    public static void tile(byte[] src, byte[] dst, int width, int height, int firstRow, int lastRow,
+                            int firstColumn, int lastColumn, int blurWidth) {
+        int sidePixels = (blurWidth - 1) / 2;
+        int last = height - 1;
+        int columns = lastColumn - firstColumn;
+        if (ForkBlurBatch.sKernel == ForkBlurBatch.Kernel.FLOAT) {
+            float[] totals = new float[columns];
+            for (int row = firstRow; row < lastRow; row++) {
+                Arrays.fill(totals, 0);
+                for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+                    int in = Math.min(Math.max(row + mi, 0), last) * width + firstColumn;
+                    for (int i = 0; i < columns; i++) {
+                        totals[i] += (float) (src[in + i] & 0xff) / blurWidth;
+                    }
+                }
+                int out = row * width + firstColumn;
+                for (int i = 0; i < columns; i++) {
+                    dst[out + i] = (byte) (int) totals[i];
+                }
+            }
+            return;
+        }
+        long reciprocal = ((1L << 40) + blurWidth - 1) / blurWidth;
+        int[] sums = new int[columns];
+        // Prime the sums with the window around the first row.
+        for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+            int in = Math.min(Math.max(firstRow + mi, 0), last) * width + firstColumn;
+            for (int i = 0; i < columns; i++) {
+                sums[i] += src[in + i] & 0xff;
+            }
+        }
+        for (int row = firstRow; row < lastRow; row++) {
+            int out = row * width + firstColumn;
+            for (int i = 0; i < columns; i++) {
+                dst[out + i] = (byte) average(sums[i], blurWidth, reciprocal);
+            }
+            // Slide every column's window down one row, clamping at the edges.
+            int entering = Math.min(row + sidePixels + 1, last) * width + firstColumn;
+            int leaving = Math.max(row - sidePixels, 0) * width + firstColumn;
+            for (int i = 0; i < columns; i++) {
+                sums[i] += (src[entering + i] & 0xff) - (src[leaving + i] & 0xff);
+            }
+        }
+    }
+
+
+    /**
+     * Packs pixels <code>from</code> through <code>to - 1</code> of three
+     * planes into opaque RGB <code>int</code>s.
+     * @param red the red plane
+     * @param green the green plane
+     * @param blue the blue plane
+     * @param dst the packed pixels
+     * @param from the first pixel to pack
+     * @param to the pixel after the last one to pack
+     */
+    public static void pack(byte[] red, byte[] green, byte[] blue, int[] dst, int from, int to) {
+        for (int i = from; i < to; i++) {
+            dst[i] = (0xff000000) | ((red[i] & 0xff) << 16) | ((green[i] & 0xff) << 8) | (blue[i] & 0xff);
+        }
+    }
+
+
+    /**
+     * Divides a window sum by the window size, by multiplying by its
+     * reciprocal where that is exact.
+     * @param sum the window sum of one channel
+     * @param blurWidth the window size
+     * @param reciprocal the reciprocal of the window size, scaled by 2^40 and rounded up
+     * @return the average
+     */
+    private static int average(int sum, int blurWidth, long reciprocal) {
+        return (blurWidth <= MAX_RECIPROCAL_WIDTH) ? (int) (sum * reciprocal >>> 40) : sum / blurWidth;
+    }
+}
@@ -0,0 +1,95 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+/**
+ * A map of blur radii for spatially varying blurs, such as a depth of
+ * field mask. The map is a grayscale image stretched over each image to
+ * blur: black leaves a pixel sharp, and white blurs it with the largest
+ * radius. Instead of an image file, <code>radial</code> gives a built-in
+ * map that is sharp in the centre and grows blurrier towards the corners.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class RadiusMap {
+    private static final int RADIAL_SIZE = 256;
+
+    private int width;
+    private int height;
+    private byte[] levels;          // Gray levels in row-major order.
+    private int maxRadius;
+
+
+    /**
+     * Creates a map from gray levels.
+     * @param width the width of the map
+     * @param height the height of the map
+     * @param levels the map's gray levels in row-major order
+     * @param maxRadius the radius a white pixel of the map stands for
+     */
+    public RadiusMap(int width, int height, byte[] levels, int maxRadius) {
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+        this.maxRadius = maxRadius;
+    }
+
+
+    /**
+     * Reads a map from an image file, or builds the <code>radial</code> one.
+     * @param spec the path of a map image, or <code>radial</code>
+     * @param maxRadius the radius a white pixel of the map stands for
+     * @return the map
+     * @throws IOException if the map image cannot be read
+     */
+    public static RadiusMap load(String spec, int maxRadius) throws IOException {
+        if (spec.equals("radial")) {
+            byte[] levels = new byte[RADIAL_SIZE * RADIAL_SIZE];
+            double centre = (RADIAL_SIZE - 1) / 2.0;
+            for (int y = 0; y < RADIAL_SIZE; y++) {
+                for (int x = 0; x < RADIAL_SIZE; x++) {
+                    double distance = Math.hypot(x - centre, y - centre) / Math.hypot(centre, centre);
+                    levels[y * RADIAL_SIZE + x] = (byte) Math.round(255 * distance);
+                }
+            }
+            return new RadiusMap(RADIAL_SIZE, RADIAL_SIZE, levels, maxRadius);
+        }
+        BufferedImage image = ImageIO.read(new File(spec));
+        if (image == null) {
+            throw new IOException("No reader for radius map: " + spec);
+        }
+        int w = image.getWidth();
+        int h = image.getHeight();
+        byte[] levels = new byte[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int pixel = image.getRGB(x, y);
+                // The map is meant to be gray; average any colour it has.
+                levels[y * w + x] = (byte) ((((pixel >> 16) & 0xff) + ((pixel >> 8) & 0xff) + (pixel & 0xff)) / 3);
+            }
+        }
+        return new RadiusMap(w, h, levels, maxRadius);
+    }
+
+
+    /**
+     * Returns the blur radius of a pixel, sampling the nearest pixel of
+     * the map stretched over the image.
+     * @param x the column of the pixel
+     * @param y the row of the pixel
+     * @param imageWidth the width of the image
+     * @param imageHeight the height of the image
+     * @return the radius, from 0 to the largest radius
+     */
+    public int radius(int x, int y, int imageWidth, int imageHeight) {
+        int mapX = (int) ((long) x * width / imageWidth);
+        int mapY = (int) ((long) y * height / imageHeight);
+        return (levels[mapY * width + mapX] & 0xff) * maxRadius / 255;
+    }
+
+
+    public int getMaxRadius() {
+        return maxRadius;
+    }
+}
@@ -0,0 +1,175 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads and writes the arrays behind <code>BufferedImage</code> rasters
+ * directly, so that the blur works on an image's own pixels instead of
+ * copies made by <code>getRGB</code> and <code>setRGB</code>, which also
+ * convert every pixel through the image's color model.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class RasterAccess {
+    private static final DirectColorModel RGB =
+            new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+
+
+    /**
+     * Returns the array behind an image that stores each pixel as one
+     * packed RGB <code>int</code> in row-major order, such as
+     * <code>TYPE_INT_RGB</code> and <code>TYPE_INT_ARGB</code>.
+     * @param image the image whose pixels are wanted
+     * @return the image's own pixel array, or null if its layout differs
+     */
+    public static int[] packedPixels(BufferedImage image) {
+        Raster raster = image.getRaster();
+        SampleModel model = raster.getSampleModel();
+        if (!(raster.getDataBuffer() instanceof DataBufferInt)
+                || !(model instanceof SinglePixelPackedSampleModel)
+                || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getOffset() != 0
+                || ((SinglePixelPackedSampleModel) model).getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB) {
+            return null;
+        }
+        return ((DataBufferInt) raster.getDataBuffer()).getData();
+    }
+
+
+    /**
+     * Unpacks an image's pixels into a packed RGB array, reading the
+     * bytes of BGR and gray images directly from their raster.
+     * @param image the image to unpack
+     * @param pixels an array of at least width * height elements
+     */
+    public static void unpack(BufferedImage image, int[] pixels) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY)
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0) {
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            byte[] bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int pixelStride = model.getPixelStride();
+            int scanlineStride = model.getScanlineStride();
+            int[] bands = model.getBandOffsets();
+            for (int y = 0; y < h; y++) {
+                int in = offset + y * scanlineStride;
+                int out = y * w;
+                if (bands.length == 1) {
+                    for (int x = 0; x < w; x++, in += pixelStride) {
+                        pixels[out + x] = (bytes[in + bands[0]] & 0xff) * 0x010101;
+                    }
+                } else {
+                    for (int x = 0; x < w; x++, in += pixelStride) {
+                        pixels[out + x] = ((bytes[in + bands[0]] & 0xff) << 16)
+                                          | ((bytes[in + bands[1]] & 0xff) << 8)
+                                          | (bytes[in + bands[2]] & 0xff);
+                    }
+                }
+            }
+            return;
+        }
+        image.getRGB(0, 0, w, h, pixels, 0, w);
+    }
+
+
+    /**
+     * Returns the array behind a <code>TYPE_BYTE_GRAY</code> image that
+     * stores one byte per pixel in row-major order, so that the image can
+     * hold one plane of a planar image.
+     * @param image the image whose bytes are wanted
+     * @return the image's own byte array, or null if its layout differs
+     */
+    public static byte[] planeBytes(BufferedImage image) {
+        Raster raster = image.getRaster();
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY
+                || !(raster.getSampleModel() instanceof ComponentSampleModel)
+                || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getOffset() != 0
+                || ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+        return ((DataBufferByte) raster.getDataBuffer()).getData();
+    }
+
+
+    /**
+     * Splits an image's pixels into red, green, and blue planes of one
+     * byte per pixel, reading the bytes of BGR and gray images directly
+     * from their raster.
+     * @param image the image to split
+     * @param red an array of at least width * height elements
+     * @param green an array of at least width * height elements
+     * @param blue an array of at least width * height elements
+     */
+    public static void unpackPlanes(BufferedImage image, byte[] red, byte[] green, byte[] blue) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY)
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0) {
+            ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+            byte[] bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int pixelStride = model.getPixelStride();
+            int scanlineStride = model.getScanlineStride();
+            int[] bands = model.getBandOffsets();
+            int[] redGreenBlue = (bands.length == 1) ? new int[] {bands[0], bands[0], bands[0]} : bands;
+            for (int y = 0; y < h; y++) {
+                int in = offset + y * scanlineStride;
+                int out = y * w;
+                for (int x = 0; x < w; x++, in += pixelStride) {
+                    red[out + x] = bytes[in + redGreenBlue[0]];
+                    green[out + x] = bytes[in + redGreenBlue[1]];
+                    blue[out + x] = bytes[in + redGreenBlue[2]];
+                }
+            }
+            return;
+        }
+        int[] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                red[y * w + x] = (byte) (row[x] >> 16);
+                green[y * w + x] = (byte) (row[x] >> 8);
+                blue[y * w + x] = (byte) row[x];
+            }
+        }
+    }
+
+
+    /**
+     * Wraps a packed RGB array in a <code>TYPE_INT_RGB</code> image
+     * without copying it, so that the array can be written as a JPEG.
+     * @param pixels the pixels in row-major order
+     * @param w the width of the image
+     * @param h the height of the image
+     * @return an image backed by <code>pixels</code>
+     */
+    public static BufferedImage wrap(int[] pixels, int w, int h) {
+        DataBufferInt buffer = new DataBufferInt(pixels, w * h);
+        WritableRaster raster = Raster.createPackedRaster(buffer, w, h, w,
+                                                          RGB.getMasks(), null);
+        return new BufferedImage(RGB, raster, false, null);
+    }
+}
@@ -0,0 +1,170 @@
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides how many pixels a leaf task blurs before it stops splitting.
+ * A leaf should run long enough to pay for forking it, which depends on
+ * the kernel and window size, but each image should still split into
+ * enough leaves to keep every worker busy, which depends on the image's
+ * size and the pool's parallelism.
+ *
+ * The cost of a pixel is first measured by a short calibration run of
+ * the current kernel, and then replaced by the cost the leaves actually
+ * report. The time a leaf aims for is tuned from the pool's steal count:
+ * when many leaves are stolen, workers are running dry and spending
+ * their time taking work from each other, so leaves are made longer;
+ * when almost none are, they are made shorter again to balance better.
+ * A fixed threshold can be given instead, which turns all this off.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class SplitPolicy {
+    private static final long MIN_LEAF_NANOS = 20000;       // Leaves shorter than this cost more to fork than to run.
+    private static final long MAX_LEAF_NANOS = 2000000;
+    private static final int LEAVES_PER_WORKER = 8;         // Leaves per worker for an image to balance well.
+    private static final double HIGH_STEAL_RATE = 0.25;
+    private static final double LOW_STEAL_RATE = 0.02;
+
+    private int parallelism;
+    private int fixedThreshold;
+    private long packPixels = 0;
+    private volatile double nanosPerPixel;
+    private volatile long leafNanos = 200000;
+    private LongAdder observedNanos = new LongAdder();
+    private LongAdder observedPixels = new LongAdder();
+    private LongAdder observedLeaves = new LongAdder();
+    private long lastStealCount = 0;
+    private long totalSteals = 0;
+    private long totalLeaves = 0;
+
+
+    /**
+     * Creates a policy from an estimate of the cost of a pixel.
+     * @param parallelism the number of workers blurring each image
+     * @param nanosPerPixel the estimated time to blur one pixel
+     * @param fixedThreshold a leaf size to use for every image, or 0 to adapt
+     */
+    public SplitPolicy(int parallelism, double nanosPerPixel, int fixedThreshold) {
+        this.parallelism = parallelism;
+        this.nanosPerPixel = nanosPerPixel;
+        this.fixedThreshold = fixedThreshold;
+    }
+
+
+    /**
+     * Creates a policy whose cost per pixel is measured by blurring a
+     * random line with the current kernel and window size.
+     * @param parallelism the number of workers blurring each image
+     * @param blurWidth the window size images will be blurred with
+     * @return the calibrated policy
+     */
+    public static SplitPolicy calibrate(int parallelism, int blurWidth) {
+        int n = 1 << 14;
+        int[] src = new int[n];
+        int[] dst = new int[n];
+        Random random = new Random(1);
+        for (int i = 0; i < n; i++) {
+            src[i] = random.nextInt();
+        }
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 40; run++) {
+            long startTime = System.nanoTime();
+            ForkBlurBatch.blurLine(src, dst, 0, 1, n, 0, n, blurWidth);
+            // The first runs only warm the kernel up.
+            if (run >= 20) {
+                best = Math.min(best, System.nanoTime() - startTime);
+            }
+        }
+        return new SplitPolicy(parallelism, Math.max((double) best / n, 0.01), 0);
+    }
+
+
+    /**
+     * Returns the number of pixels below which tasks blurring an image
+     * stop splitting.
+     * @param pixels the number of pixels in the image, or in one pass over it
+     * @return the leaf size, at least 1, or <code>Integer.MAX_VALUE</code>
+     *         if the image is small enough not to split
+     */
+    public int threshold(long pixels) {
+        if (pixels < packPixels) {
+            return Integer.MAX_VALUE;
+        }
+        if (fixedThreshold > 0) {
+            return fixedThreshold;
+        }
+        double perPixel = nanosPerPixel;
+        long target = (long) (leafNanos / perPixel);
+        long smallest = (long) (MIN_LEAF_NANOS / perPixel);
+        long balanced = pixels / ((long) parallelism * LEAVES_PER_WORKER);
+        long leaf = Math.min(target, Math.max(smallest, balanced));
+        return (int) Math.max(1, Math.min(leaf, Integer.MAX_VALUE));
+    }
+
+
+    /**
+     * Stops images smaller than a given size from splitting at all. Each
+     * is then blurred by a single worker, and a batch of small images is
+     * packed across the workers one image to each, rather than every
+     * image being cut into leaves that all the workers share.
+     * @param packPixels the size below which images are not split, or 0 to split all
+     */
+    public void setPackPixels(long packPixels) {
+        this.packPixels = packPixels;
+    }
+
+
+    /**
+     * Notes how long a leaf took.
+     * @param pixels the number of pixels the leaf blurred
+     * @param nanos the time it took
+     */
+    public void recordLeaf(long pixels, long nanos) {
+        observedPixels.add(pixels);
+        observedNanos.add(nanos);
+        observedLeaves.increment();
+    }
+
+
+    /**
+     * Folds the leaves recorded since the last call into the cost per
+     * pixel, and lengthens or shortens the leaves aimed for depending
+     * on how many of them were stolen.
+     * @param stealCount the pool's total steal count so far
+     */
+    public synchronized void adjust(long stealCount) {
+        long pixels = observedPixels.sumThenReset();
+        long nanos = observedNanos.sumThenReset();
+        long leaves = observedLeaves.sumThenReset();
+        long steals = stealCount - lastStealCount;
+        lastStealCount = stealCount;
+        totalSteals += steals;
+        totalLeaves += leaves;
+        if (fixedThreshold > 0 || leaves == 0 || pixels == 0) {
+            return;
+        }
+        nanosPerPixel = (nanosPerPixel + (double) nanos / pixels) / 2;
+        double stealRate = (double) steals / leaves;
+        if (stealRate > HIGH_STEAL_RATE) {
+            leafNanos = Math.min(leafNanos * 5 / 4, MAX_LEAF_NANOS);
+        } else if (stealRate < LOW_STEAL_RATE && parallelism > 1) {
+            leafNanos = Math.max(leafNanos * 4 / 5, MIN_LEAF_NANOS);
+        }
+    }
+
+
+    /**
+     * Prints the leaf size the policy has settled on and the steals it
+     * saw.
+     */
+    public synchronized void printStats() {
+        if (fixedThreshold > 0) {
+            System.out.println("Split threshold fixed at " + fixedThreshold + " pixels; " +
+                               totalSteals + " steals over " + totalLeaves + " leaves.");
+            return;
+        }
+        System.out.println("Split policy aims for " + (leafNanos / 1000) + " microsecond leaves at " +
+                           String.format("%.2f", nanosPerPixel) + " ns per pixel; " +
+                           totalSteals + " steals over " + totalLeaves + " leaves.");
+    }
+}
@@ -0,0 +1,179 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+
+/**
+ * Blurs an image too large to hold whole, one strip of rows at a time.
+ * Each strip is decoded through the reader with a source region that
+ * adds the halo rows the blur reaches into above and below it, blurred
+ * as an image of its own, and kept only until the writer has taken its
+ * rows. The halo rows absorb the edges of the strip, so the output is
+ * the same as blurring the whole image.
+ *
+ * The JPEG writer takes its rows from the image it is given one at a
+ * time and top to bottom, but insists on a single raster for the whole
+ * image. The image handed to it is therefore backed by a
+ * <code>DataBuffer</code> that holds no pixels: reading a row outside
+ * the current strip blurs the strip that holds it. Peak memory then
+ * depends on the strip height and not on the image's height. Decoding a
+ * region of a JPEG still has to decode the rows above it, so reading an
+ * image in <code>n</code> strips costs up to about <code>n / 2</code>
+ * decodes of the whole image.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class StreamingBlur {
+    private ImageReader reader;
+    private ForkJoinPool pool;
+    private BatchStats stats;
+    private int width;
+    private int height;
+    private int stripRows;
+    private int haloRows;
+    private String outputName;
+    private ForkBlurBatch strip = null;     // The current strip, once blurred.
+    private int[] stripPixels;
+    private int stripFirst = 0;             // The rows of the image the current strip covers.
+    private int stripEnd = 0;
+    private int stripOffset;                // Index in stripPixels of the first pixel of row stripFirst.
+    private int strips = 0;
+    private long stripNanos = 0;            // Time spent reading and blurring strips.
+    private IOException failure = null;
+
+
+    /**
+     * Creates a streaming blur of the first image of a reader.
+     * @param reader a reader whose input has been set
+     * @param pool the pool that blurs each strip
+     * @param stats the timings to add the image's stages to
+     * @param stripRows the number of rows blurred and written at a time
+     * @param haloRows the number of rows the blur reaches into on either side of a row
+     * @param outputName the name of the file for the blurred image
+     * @throws IOException if the image's size cannot be read, or it has
+     *                     more pixels than an array can index
+     */
+    public StreamingBlur(ImageReader reader, ForkJoinPool pool, BatchStats stats, int stripRows,
+                         int haloRows, String outputName) throws IOException {
+        this.reader = reader;
+        this.pool = pool;
+        this.stats = stats;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("Image too large to stream: " + width + "x" + height);
+        }
+        this.stripRows = stripRows;
+        this.haloRows = haloRows;
+        this.outputName = outputName;
+    }
+
+
+    /**
+     * Blurs the image and writes it, strip by strip.
+     * @return whether a writer was found for the image
+     * @throws IOException if a strip cannot be read or the image cannot be written
+     */
+    public boolean run() throws IOException {
+        DataBuffer rows = new DataBuffer(DataBuffer.TYPE_INT, width * height) {
+            @Override
+            public int getElem(int bank, int i) {
+                return pixel(i);
+            }
+
+            @Override
+            public void setElem(int bank, int i, int value) {
+                throw new UnsupportedOperationException("A streamed image cannot be written to.");
+            }
+        };
+        DirectColorModel rgb = new DirectColorModel(24, 0x00ff0000, 0x0000ff00, 0x000000ff);
+        BufferedImage image = new BufferedImage(rgb, Raster.createWritableRaster(
+                                  rgb.createCompatibleSampleModel(width, height), rows, null), false, null);
+        File dstFile = new File(ForkBlurBatch.sOutputDir, outputName);
+        System.out.println("Beginning write of: " + outputName);
+        long startTime = System.nanoTime();
+        boolean written;
+        try {
+            written = ImageIO.write(image, "jpg", dstFile);
+        } finally {
+            releaseStrip();
+            // The strips' reads and blurs were recorded as they ran; the rest was writing.
+            stats.record(outputName, BatchStats.Stage.WRITE, System.nanoTime() - startTime - stripNanos);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (!written) {
+            System.out.println("No jpg writer for the blurred image of: " + outputName);
+            return false;
+        }
+        System.out.println("Finish write of: " + outputName + " in " + strips + " strips");
+        return true;
+    }
+
+
+    /**
+     * Returns a pixel of the blurred image, blurring the strip that
+     * holds it if it is not the current one.
+     * @param i the index of the pixel in row-major order
+     * @return the blurred pixel
+     */
+    private int pixel(int i) {
+        int row = i / width;
+        if (row < stripFirst || row >= stripEnd) {
+            blurStrip(row / stripRows * stripRows);
+        }
+        return stripPixels[stripOffset + i - stripFirst * width];
+    }
+
+
+    /**
+     * Reads and blurs the strip starting at a row, in place of the
+     * current one. The writer cannot be handed an exception from here,
+     * so a failure is kept to be thrown once it returns, and the strip
+     * is left black.
+     * @param first the first row of the strip
+     */
+    private void blurStrip(int first) {
+        releaseStrip();
+        stripFirst = first;
+        stripEnd = Math.min(first + stripRows, height);
+        int readFirst = Math.max(stripFirst - haloRows, 0);
+        int readEnd = Math.min(stripEnd + haloRows, height);
+        stripOffset = (stripFirst - readFirst) * width;
+        long startTime = System.nanoTime();
+        try {
+            BufferedImage decoded = ForkBlurBatch.decode(reader, new Rectangle(0, readFirst, width, readEnd - readFirst));
+            strip = ForkBlurBatch.createTask(decoded, outputName, null);
+            stats.record(outputName, BatchStats.Stage.READ, System.nanoTime() - startTime);
+            strip.deferWrite();
+            pool.invoke(strip);
+            stripPixels = strip.getResult();
+            strips++;
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            stripPixels = new int[(readEnd - readFirst) * width];
+        }
+        stripNanos += System.nanoTime() - startTime;
+    }
+
+
+    /**
+     * Returns the current strip's buffers to the pool.
+     */
+    private void releaseStrip() {
+        if (strip != null) {
+            strip.releaseBuffers();
+            strip = null;
+        }
+        stripPixels = null;
+    }
+}
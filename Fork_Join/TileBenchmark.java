@@ -0,0 +1,85 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times the blur of one large synthetic image in each mode, so that the
+ * linear split of <code>flat</code>, the column bands of
+ * <code>separable</code>, and the L2-sized tiles of <code>tiled</code>
+ * can be compared on multi-megapixel inputs without any image I/O. The
+ * best of several runs is reported for each mode, and the output of
+ * <code>tiled</code> is checked against <code>separable</code>, which
+ * computes the same blur in a different order.
+ *
+ * Usage: <code>java TileBenchmark [width height [runs [kernel]]]</code>,
+ * by default a 6000x4000 image, five runs, and the fixed-point kernel.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class TileBenchmark {
+
+    public static void main(String[] args) {
+        int w = (args.length > 1) ? Integer.parseInt(args[0]) : 6000;
+        int h = (args.length > 1) ? Integer.parseInt(args[1]) : 4000;
+        int runs = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        ForkBlurBatch.sKernel = (args.length > 3)
+                                ? ForkBlurBatch.Kernel.valueOf(args[3].toUpperCase().replace('-', '_'))
+                                : ForkBlurBatch.Kernel.FIXED_POINT;
+        if (ForkBlurBatch.sKernel == ForkBlurBatch.Kernel.VECTOR) {
+            ForkBlurBatch.loadVectorKernel();
+        }
+        ForkJoinPool pool = new ForkJoinPool();
+        ForkBlurBatch.setSplitPolicy(SplitPolicy.calibrate(pool.getParallelism(), ForkBlurBatch.sBlurWidth));
+
+        int[] image = syntheticImage(w, h);
+
+        System.out.println("Blurring a " + w + "x" + h + " image with the " + ForkBlurBatch.sKernel +
+                           " kernel on " + pool.getParallelism() + " workers, L2 taken as " +
+                           (ForkBlurBatch.sL2Bytes >> 10) + " KB.");
+        int[] separable = null;
+        for (ForkBlurBatch.Mode mode : ForkBlurBatch.Mode.values()) {
+            ForkBlurBatch.sMode = mode;
+            long best = Long.MAX_VALUE;
+            int[] result = null;
+            for (int run = 0; run < runs; run++) {
+                int[] src = image.clone();
+                int[] dst = new int[w * h];
+                ForkBlurBatch fb = new ForkBlurBatch(src, 0, w * h, dst, w, h, "benchmark");
+                fb.deferWrite();
+                long startTime = System.nanoTime();
+                pool.invoke(fb);
+                best = Math.min(best, System.nanoTime() - startTime);
+                result = fb.getResult();
+            }
+            System.out.println(mode + ": best of " + runs + " runs took " + (best / 1000000) + " milliseconds.");
+            if (mode == ForkBlurBatch.Mode.SEPARABLE) {
+                separable = result;
+            } else if (mode == ForkBlurBatch.Mode.TILED && separable != null) {
+                System.out.println("TILED output " + (Arrays.equals(separable, result) ? "matches" : "DIFFERS FROM") +
+                                   " SEPARABLE output.");
+            }
+        }
+        pool.shutdown();
+    }
+
+
+    /**
+     * Makes the image the benchmarks blur: a gradient with noise, so
+     * that no window averages to a constant. The noise is seeded, so
+     * every run blurs the same pixels.
+     * @param w the width of the image
+     * @param h the height of the image
+     * @return the packed RGB pixels, in row-major order
+     */
+    static int[] syntheticImage(int w, int h) {
+        int[] image = new int[w * h];
+        Random random = new Random(1);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int noise = random.nextInt(64);
+                image[y * w + x] = ((x * 191 / w + noise) << 16) | ((y * 191 / h + noise) << 8) | noise;
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,125 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A blur kernel written with the incubating Vector API. Like the
+ * running-sum kernel, it slides per-channel window sums along a line,
+ * but it handles a whole vector of output pixels per step: the pixels
+ * entering and leaving the window are loaded as vectors, unpacked into
+ * per-channel differences, and turned into window sums by an in-register
+ * prefix sum carried on from the previous vector.
+ *
+ * Must be compiled and run with <code>--add-modules jdk.incubator.vector</code>.
+ * <code>ForkBlurBatch</code> loads this class by name so that it still
+ * compiles and runs without the module.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+public class VectorBlurKernel implements ForkBlurBatch.LineKernel {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorShuffle<Integer> LAST_LANE =
+            INTS.shuffleFromOp(i -> INTS.length() - 1);
+    private static final int SHIFT = 23;                // Scale of the reciprocal.
+    private static final int MAX_WIDTH = 181;           // 255 * 181^2 < 2^SHIFT keeps it exact.
+
+
+    /**
+     * Averages elements <code>from</code> through <code>to - 1</code> of
+     * a line. Only lines with a stride of one can be loaded as vectors,
+     * and vectors whose windows would be clamped at the ends of the line
+     * are left to the scalar kernel, as are windows wider than
+     * <code>MAX_WIDTH</code>. Parameters are as for
+     * <code>ForkBlurBatch.blurLine</code>.
+     */
+    @Override
+    public void blurLine(int[] src, int[] dst, int base, int stride, int n,
+                         int from, int to, int blurWidth) {
+        int lanes = INTS.length();
+        int sidePixels = (blurWidth - 1) / 2;
+        // Vectors start where no window reaches past either end of the line.
+        int vectorStart = Math.max(from, sidePixels + 1);
+        int vectorEnd = vectorStart +
+                        Math.max(Math.min(to, n - sidePixels) - vectorStart, 0) / lanes * lanes;
+        if (stride != 1 || blurWidth > MAX_WIDTH || vectorStart >= vectorEnd) {
+            ForkBlurBatch.scalarLine(src, dst, base, stride, n, from, to, blurWidth);
+            return;
+        }
+        ForkBlurBatch.scalarLine(src, dst, base, stride, n, from, vectorStart, blurWidth);
+
+        // Carry in the sums for the window ending just before the first vector.
+        int rs = 0,
+            gs = 0,
+            bs = 0;
+        for (int mi = -sidePixels; mi <= sidePixels; mi++) {
+            int pixel = src[base + vectorStart - 1 + mi];
+            rs += (pixel & 0x00ff0000) >> 16;
+            gs += (pixel & 0x0000ff00) >> 8;
+            bs += (pixel & 0x000000ff) >> 0;
+        }
+        IntVector rCarry = IntVector.broadcast(INTS, rs);
+        IntVector gCarry = IntVector.broadcast(INTS, gs);
+        IntVector bCarry = IntVector.broadcast(INTS, bs);
+        int reciprocal = ((1 << SHIFT) + blurWidth - 1) / blurWidth;
+
+        for (int index = vectorStart; index < vectorEnd; index += lanes) {
+            IntVector entering = IntVector.fromArray(INTS, src, base + index + sidePixels);
+            IntVector leaving = IntVector.fromArray(INTS, src, base + index - sidePixels - 1);
+            IntVector r = prefixSum(channel(entering, 16).sub(channel(leaving, 16))).add(rCarry);
+            IntVector g = prefixSum(channel(entering, 8).sub(channel(leaving, 8))).add(gCarry);
+            IntVector b = prefixSum(channel(entering, 0).sub(channel(leaving, 0))).add(bCarry);
+            // Reassemble destination pixels.
+            average(r, reciprocal).lanewise(VectorOperators.LSHL, 16)
+                    .or(average(g, reciprocal).lanewise(VectorOperators.LSHL, 8))
+                    .or(average(b, reciprocal))
+                    .or(0xff000000)
+                    .intoArray(dst, base + index);
+            rCarry = r.rearrange(LAST_LANE);
+            gCarry = g.rearrange(LAST_LANE);
+            bCarry = b.rearrange(LAST_LANE);
+        }
+
+        ForkBlurBatch.scalarLine(src, dst, base, stride, n, vectorEnd, to, blurWidth);
+    }
+
+
+    /**
+     * Unpacks one channel from each lane of a vector of pixels.
+     * @param pixels a vector of RGB pixels
+     * @param shift the bit offset of the channel within a pixel
+     * @return the channel's values
+     */
+    private static IntVector channel(IntVector pixels, int shift) {
+        return pixels.lanewise(VectorOperators.LSHR, shift).and(0xff);
+    }
+
+
+    /**
+     * Computes the inclusive prefix sum across the lanes of a vector by
+     * adding copies of it shifted up by 1, 2, 4, ... lanes.
+     * @param v the values to sum
+     * @return a vector whose lane <code>i</code> holds the sum of lanes 0 through i
+     */
+    private static IntVector prefixSum(IntVector v) {
+        for (int shift = 1; shift < INTS.length(); shift <<= 1) {
+            v = v.add(v.unslice(shift));
+        }
+        return v;
+    }
+
+
+    /**
+     * Divides each lane's window sum by the window size by multiplying
+     * by a reciprocal scaled by 2^SHIFT and shifting. As in the scalar
+     * fixed-point kernel the reciprocal is rounded up, which is exact for
+     * every sum a window of at most <code>MAX_WIDTH</code> can hold, and
+     * the product still fits in an <code>int</code> lane.
+     * @param sums the window sums of one channel
+     * @param reciprocal the reciprocal of the window size, scaled by 2^SHIFT
+     * @return the averages of the channel
+     */
+    private static IntVector average(IntVector sums, int reciprocal) {
+        return sums.mul(reciprocal).lanewise(VectorOperators.LSHR, SHIFT);
+    }
+}
@@ -0,0 +1,133 @@
+package jmh;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the blur on synthetic in-memory images, with no
+ * image I/O and with the JIT warmed up first, unlike the time
+ * <code>main</code> prints. <code>computeDirectly</code> times the
+ * kernel alone, blurring a whole image as one leaf on one thread, and
+ * <code>invoke</code> times a complete image blurred on a
+ * <code>ForkJoinPool</code>. One operation is one image, so throughput
+ * is in images per second. The blur itself is set up by
+ * <code>BlurTarget</code>.
+ *
+ * Every parameter can be overridden with JMH's <code>-p</code> option,
+ * for example <code>-p kernel=FIXED_POINT,VECTOR -p size=6000x4000</code>.
+ * @author Franklin D. Worrell
+ * @version 13 December 2017
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class BlurBenchmark {
+
+    /**
+     * The parameters both benchmarks take: the image and how it is blurred.
+     */
+    @State(Scope.Benchmark)
+    public static class Kernel {
+        @Param({"1000x750", "4000x3000"})
+        public String size;
+
+        @Param({"15", "61"})
+        public int blurWidth;
+
+        @Param({"FLOAT", "RUNNING_SUM", "FIXED_POINT", "VECTOR"})
+        public String kernel;
+
+        Map<String, String> params() {
+            Map<String, String> params = new HashMap<>();
+            params.put("size", size);
+            params.put("blurWidth", Integer.toString(blurWidth));
+            params.put("kernel", kernel);
+            return params;
+        }
+    }
+
+
+    /**
+     * A blur of the whole image as a single leaf.
+     */
+    @State(Scope.Benchmark)
+    public static class Direct {
+        Runnable blur;
+
+        @Setup(Level.Trial)
+        public void setup(Kernel kernel) throws ReflectiveOperationException {
+            blur = target("computeDirectly", kernel.params());
+        }
+    }
+
+
+    /**
+     * The further parameters of a blur on a pool: how many workers it
+     * has, and how the image is split among them.
+     */
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"0"})
+        public int parallelism;         // 0 for one worker per processor.
+
+        @Param({"0"})
+        public int threshold;           // Fixed leaf size in pixels, 0 to adapt.
+
+        @Param({"FLAT", "SEPARABLE", "TILED"})
+        public String mode;
+
+        Runnable blur;
+
+        @Setup(Level.Trial)
+        public void setup(Kernel kernel) throws ReflectiveOperationException {
+            Map<String, String> params = kernel.params();
+            params.put("parallelism", Integer.toString(parallelism));
+            params.put("threshold", Integer.toString(threshold));
+            params.put("mode", mode);
+            blur = target("invoke", params);
+        }
+    }
+
+
+    @Benchmark
+    public void computeDirectly(Direct direct) {
+        direct.blur.run();
+    }
+
+
+    @Benchmark
+    public void invoke(Pool pool) {
+        pool.blur.run();
+    }
+
+
+    /**
+     * Sets up a blur through <code>BlurTarget</code>.
+     * @param operation the operation to time
+     * @param params the benchmark's parameters
+     * @return the work to time
+     * @throws ReflectiveOperationException if <code>BlurTarget</code> is not on the class path
+     */
+    @SuppressWarnings("unchecked")
+    static Runnable target(String operation, Map<String, String> params) throws ReflectiveOperationException {
+        BiFunction<String, Map<String, String>, Runnable> target = (BiFunction<String, Map<String, String>, Runnable>)
+                Class.forName("BlurTarget").getDeclaredConstructor().newInstance();
+        return target.apply(operation, params);
+    }
+}